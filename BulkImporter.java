@@ -0,0 +1,421 @@
+/**
+ * Imports users, follows and weets from large CSV files into the stores, reading them in chunks through a FileChannel so memory use doesn't depend on the size of the file
+ * Lines are: "id,name,date" for users, "follower id,followed id,date" for follows and "id,user id,message,date" for weets
+ * (names and messages may contain commas, and may be quoted with "" for a quote inside them)
+ * Dates are parsed straight from the bytes of the line, without SimpleDateFormat or any object per line, as dd/MM/yyyy HH:mm:ss, yyyy-MM-dd HH:mm:ss (or with a T) or milliseconds since 1970,
+ * in the importer's time zone
+ * The import is a pipeline: one thread reads chunks of whole lines, a pool of threads parses them into columns, and the calling thread inserts the parsed chunks in file order,
+ * so duplicates are rejected by the stores (and users on the same date keep the order they have in the file) exactly as if the lines were added one by one
+ * Only a bounded number of chunks is in flight at any time, and every import returns a Report with the number of lines, added, duplicate and malformed records and the lines per second
+ * @author: 1525713
+ */
+
+package uk.ac.warwick.java.cs126.services;
+
+import uk.ac.warwick.java.cs126.models.User;
+import uk.ac.warwick.java.cs126.models.Weet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class BulkImporter {
+
+    //the records parsed from one chunk of lines, as columns
+    class Batch {
+        protected int[] first;      //user id, follower id or weet id
+        protected int[] second;     //followed id or the id of the user who posted the weet (unused for users)
+        protected long[] dates;
+        protected String[] texts;   //names or messages (unused for follows)
+        protected int count;
+        protected int lines;
+        protected int malformed;
+        protected boolean last;     //marks the end of the file, carries no records
+
+        Batch(int capacity) {
+            first = new int[capacity];
+            second = new int[capacity];
+            dates = new long[capacity];
+            texts = new String[capacity];
+            count = 0;
+            lines = 0;
+            malformed = 0;
+            last = false;
+        }
+    }
+
+    //parses the lines of one chunk (a parser is only used by one thread)
+    class Parser implements Callable<Batch> {
+        private int kind;
+        private byte[] chunk;
+        private int length;
+        private int position;   //position reached by the last parsed field
+
+        Parser(int kind, byte[] chunk, int length) {
+            this.kind = kind;
+            this.chunk = chunk;
+            this.length = length;
+        }
+
+        public Batch call() {
+            int lines = 0;
+            for(int i = 0; i < length; i++) {
+                if(chunk[i] == '\n') lines++;
+            }
+            if( (length > 0) && (chunk[length - 1] != '\n') ) lines++;
+            Batch batch = new Batch(lines);
+            int start = 0;
+            while(start < length) {
+                int end = start;
+                while( (end < length) && (chunk[end] != '\n') ) end++;
+                int next = end + 1;
+                if( (end > start) && (chunk[end - 1] == '\r') ) end--;
+                batch.lines++;
+                if(end > start) {
+                    if(parseLine(start, end, batch)) batch.count++;
+                    else batch.malformed++;
+                }
+                start = next;
+            }
+            return batch;
+        }
+
+        //parses the line between start (inclusive) and end (exclusive) into the next record of the batch, returns false if it is malformed
+        private boolean parseLine(int start, int end, Batch batch) {
+            int last = end - 1;
+            while( (last >= start) && (chunk[last] != ',') ) last--;   //the date is after the last comma
+            if(last < start) return false;
+            long date = parseDate(chunk, last + 1, end);
+            if(date == Long.MIN_VALUE) return false;
+            position = start;
+            long first = parseInt(last);
+            if( (first == Long.MIN_VALUE) || (position >= last) ) return false;
+            position++;     //skip the comma
+            int n = batch.count;
+            batch.first[n] = (int)first;
+            batch.dates[n] = date;
+            if(kind == USERS) {
+                batch.texts[n] = parseText(position, last);
+                return true;
+            }
+            long second = parseInt(last);
+            if(second == Long.MIN_VALUE) return false;
+            batch.second[n] = (int)second;
+            if(kind == FOLLOWS) return position == last;
+            if(position >= last) return false;
+            batch.texts[n] = parseText(position + 1, last);
+            return true;
+        }
+
+        //parses an int from position up to the next comma (or limit), leaving position on that comma, returns Long.MIN_VALUE if it isn't a valid int
+        private long parseInt(int limit) {
+            int p = position;
+            boolean negative = false;
+            if( (p < limit) && (chunk[p] == '-') ) {
+                negative = true;
+                p++;
+            }
+            long value = 0;
+            int digits = 0;
+            while( (p < limit) && (chunk[p] != ',') ) {
+                int digit = chunk[p] - '0';
+                if( (digit < 0) || (digit > 9) || (digits == 10) ) return Long.MIN_VALUE;
+                value = (value * 10) + digit;
+                digits++;
+                p++;
+            }
+            if(digits == 0) return Long.MIN_VALUE;
+            if(negative) value = -value;
+            if( (value < Integer.MIN_VALUE) || (value > Integer.MAX_VALUE) ) return Long.MIN_VALUE;
+            position = p;
+            return value;
+        }
+
+        //decodes the text between start and end, removing the quotes around it (and turning "" into ") if it is quoted
+        private String parseText(int start, int end) {
+            if( (end - start >= 2) && (chunk[start] == '"') && (chunk[end - 1] == '"') ) {
+                String text = new String(chunk, start + 1, end - start - 2, StandardCharsets.UTF_8);
+                if(text.indexOf('"') >= 0) text = text.replace("\"\"", "\"");
+                return text;
+            }
+            return new String(chunk, start, end - start, StandardCharsets.UTF_8);
+        }
+    }
+
+    //the outcome of an import
+    public class Report {
+        protected long lines;
+        protected long added;
+        protected long duplicates;  //records rejected by the store because they were already there
+        protected long malformed;   //lines which couldn't be parsed (including a header line)
+        protected long nanos;
+
+        public long getLines() {
+            return lines;
+        }
+
+        public long getAdded() {
+            return added;
+        }
+
+        public long getDuplicates() {
+            return duplicates;
+        }
+
+        public long getMalformed() {
+            return malformed;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        public double getLinesPerSecond() {
+            if(nanos == 0) return 0;
+            return lines * 1e9 / nanos;
+        }
+
+        public String toString() {
+            return lines + " lines (" + added + " added, " + duplicates + " duplicates, " + malformed + " malformed) in " + (nanos / 1000000) + " ms, "
+                + Math.round(getLinesPerSecond()) + " lines/s";
+        }
+    }
+
+    public static final int USERS = 0;
+    public static final int FOLLOWS = 1;
+    public static final int WEETS = 2;
+    public static final int CHUNK_SIZE = 1 << 22;   //bytes read at a time (grown for a line which doesn't fit)
+    public static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+    private static final int[] DAYS_IN_MONTH = {31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31};
+
+    protected UserStore users;
+    protected FollowerStore followers;
+    protected WeetStore weets;
+    protected int threads;          //number of threads parsing chunks
+    protected TimeZone zone;        //the time zone of dates written as a day and time
+    protected boolean fixedZone;    //true if the offset of the zone never changes, so it doesn't have to be looked up for every date
+    protected int fixedOffset;
+
+    //any of the stores can be null if nothing is imported into it
+    public BulkImporter(UserStore users, FollowerStore followers, WeetStore weets) {
+        this(users, followers, weets, Runtime.getRuntime().availableProcessors(), TimeZone.getDefault());
+    }
+
+    public BulkImporter(UserStore users, FollowerStore followers, WeetStore weets, int threads, TimeZone zone) {
+        this.users = users;
+        this.followers = followers;
+        this.weets = weets;
+        this.threads = Math.max(1, threads);
+        this.zone = zone;
+        fixedZone = WeetStore.isFixedOffset(zone);     //the same check the WeetStore uses to group weets into days
+        fixedOffset = zone.getOffset(0);
+    }
+
+    public Report importUsers(File file) throws IOException {
+        if(users == null) throw new IllegalStateException("The importer has no UserStore");
+        return importFile(file, USERS);
+    }
+
+    public Report importFollows(File file) throws IOException {
+        if(followers == null) throw new IllegalStateException("The importer has no FollowerStore");
+        return importFile(file, FOLLOWS);
+    }
+
+    public Report importWeets(File file) throws IOException {
+        if(weets == null) throw new IllegalStateException("The importer has no WeetStore");
+        return importFile(file, WEETS);
+    }
+
+    //runs the pipeline: a reader thread queues a parse of every chunk (in order, blocking while too many are in flight) and this thread inserts them as they finish
+    protected Report importFile(File file, int kind) throws IOException {
+        long start = System.nanoTime();
+        Report report = new Report();
+        ExecutorService pool = Executors.newFixedThreadPool(threads + 1);
+        ArrayBlockingQueue<Future<Batch>> queue = new ArrayBlockingQueue<>(threads * 2);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            pool.submit(new Runnable() {
+                public void run() {
+                    read(channel, kind, pool, queue);
+                }
+            });
+            while(true) {
+                Batch batch;
+                try {
+                    batch = queue.take().get();
+                } catch(ExecutionException e) {
+                    if(e.getCause() instanceof IOException) throw (IOException)e.getCause();
+                    throw new IOException("Import of " + file + " failed", e.getCause());
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Import of " + file + " was interrupted", e);
+                }
+                if(batch.last) break;
+                insert(batch, kind, report);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        report.nanos = System.nanoTime() - start;
+        return report;
+    }
+
+    //reads the file in chunks ending at the end of a line and queues a parse of each, then queues the end of the file (or the error which stopped the reading)
+    private void read(FileChannel channel, int kind, ExecutorService pool, ArrayBlockingQueue<Future<Batch>> queue) {
+        try {
+            byte[] chunk = new byte[CHUNK_SIZE];
+            int filled = 0;
+            boolean end = false;
+            while(!end) {
+                ByteBuffer buffer = ByteBuffer.wrap(chunk, filled, chunk.length - filled);
+                int read = channel.read(buffer);
+                if(read < 0) end = true;
+                else filled += read;
+                //the chunk is cut after its last complete line, the rest starts the next chunk
+                int cut = filled;
+                if(!end) {
+                    cut = filled - 1;
+                    while( (cut >= 0) && (chunk[cut] != '\n') ) cut--;
+                    cut++;
+                    if(cut == 0) {
+                        if(filled == chunk.length) {
+                            //a line longer than the chunk, so the chunk grows
+                            byte[] bigger = new byte[chunk.length * 2];
+                            System.arraycopy(chunk, 0, bigger, 0, filled);
+                            chunk = bigger;
+                        }
+                        continue;
+                    }
+                }
+                if(cut > 0) {
+                    byte[] next = new byte[chunk.length];
+                    System.arraycopy(chunk, cut, next, 0, filled - cut);
+                    queue.put(pool.submit(new Parser(kind, chunk, cut)));
+                    filled -= cut;
+                    chunk = next;
+                }
+            }
+            Batch last = new Batch(0);
+            last.last = true;
+            queue.put(CompletableFuture.completedFuture(last));
+        } catch(IOException e) {
+            putFailure(queue, e);
+        } catch(InterruptedException e) {
+            //the import was stopped, nobody is waiting for more chunks
+        } catch(RuntimeException e) {
+            putFailure(queue, e);
+        }
+    }
+
+    private void putFailure(ArrayBlockingQueue<Future<Batch>> queue, Exception e) {
+        CompletableFuture<Batch> failed = new CompletableFuture<>();
+        failed.completeExceptionally(e);
+        try {
+            queue.put(failed);
+        } catch(InterruptedException ignored) {
+            //the import was stopped already
+        }
+    }
+
+    //adds the records of the batch to the store, counting those the store rejects as duplicates
+    private void insert(Batch batch, int kind, Report report) {
+        report.lines += batch.lines;
+        report.malformed += batch.malformed;
+        int added = 0;
+        if(kind == USERS) {
+            User[] usrs = new User[batch.count];
+            for(int i = 0; i < batch.count; i++) {
+                usrs[i] = new User(batch.texts[i], batch.first[i], new Date(batch.dates[i]));
+            }
+            added = users.addUsers(usrs);
+        } else if(kind == FOLLOWS) {
+            for(int i = 0; i < batch.count; i++) {
+                if(followers.addFollower(batch.first[i], batch.second[i], new Date(batch.dates[i]))) added++;
+            }
+        } else {
+            for(int i = 0; i < batch.count; i++) {
+                if(weets.addWeet(new Weet(batch.first[i], batch.second[i], batch.texts[i], new Date(batch.dates[i])))) added++;
+            }
+        }
+        report.added += added;
+        report.duplicates += batch.count - added;
+    }
+
+    //parses a date from the bytes between start and end, returns Long.MIN_VALUE if it isn't a valid date
+    protected long parseDate(byte[] bytes, int start, int end) {
+        int length = end - start;
+        if( (length == 19) && (bytes[start + 2] == '/') && (bytes[start + 5] == '/') ) {
+            //dd/MM/yyyy HH:mm:ss
+            return localToTime(digits(bytes, start + 6, 4), digits(bytes, start + 3, 2), digits(bytes, start, 2),
+                digits(bytes, start + 11, 2), digits(bytes, start + 14, 2), digits(bytes, start + 17, 2), bytes[start + 10], bytes[start + 13], bytes[start + 16]);
+        }
+        if( (length == 19) && (bytes[start + 4] == '-') && (bytes[start + 7] == '-') ) {
+            //yyyy-MM-dd HH:mm:ss or yyyy-MM-ddTHH:mm:ss
+            byte separator = bytes[start + 10];
+            if(separator == 'T') separator = ' ';
+            return localToTime(digits(bytes, start, 4), digits(bytes, start + 5, 2), digits(bytes, start + 8, 2),
+                digits(bytes, start + 11, 2), digits(bytes, start + 14, 2), digits(bytes, start + 17, 2), separator, bytes[start + 13], bytes[start + 16]);
+        }
+        //milliseconds since 1970
+        if( (length == 0) || (length > 18) ) return Long.MIN_VALUE;
+        int p = start;
+        boolean negative = bytes[p] == '-';
+        if(negative) p++;
+        if(p == end) return Long.MIN_VALUE;
+        long time = 0;
+        for(; p < end; p++) {
+            int digit = bytes[p] - '0';
+            if( (digit < 0) || (digit > 9) ) return Long.MIN_VALUE;
+            time = (time * 10) + digit;
+        }
+        return negative ? -time : time;
+    }
+
+    //the number written with count digits at start, or -1 if they aren't all digits
+    private int digits(byte[] bytes, int start, int count) {
+        int value = 0;
+        for(int i = start; i < start + count; i++) {
+            int digit = bytes[i] - '0';
+            if( (digit < 0) || (digit > 9) ) return -1;
+            value = (value * 10) + digit;
+        }
+        return value;
+    }
+
+    //turns a day and time in the importer's time zone into milliseconds since 1970, returns Long.MIN_VALUE if any part is out of range or a separator is wrong
+    private long localToTime(int year, int month, int day, int hour, int minute, int second, byte space, byte colon1, byte colon2) {
+        if( (space != ' ') || (colon1 != ':') || (colon2 != ':') ) return Long.MIN_VALUE;
+        if( (year < 0) || (month < 1) || (month > 12) || (day < 1) || (hour < 0) || (hour > 23) || (minute < 0) || (minute > 59) || (second < 0) || (second > 59) ) return Long.MIN_VALUE;
+        boolean leap = ((year % 4 == 0) && (year % 100 != 0)) || (year % 400 == 0);
+        int monthDays = DAYS_IN_MONTH[month - 1];
+        if( (month == 2) && leap ) monthDays++;
+        if(day > monthDays) return Long.MIN_VALUE;
+        //days since 1 January 1970, counting years from March so the leap day is the last day of the year
+        int y = (month <= 2) ? year - 1 : year;
+        int era = y / 400;
+        int yearOfEra = y - (era * 400);
+        int dayOfYear = (((153 * (month + (month > 2 ? -3 : 9))) + 2) / 5) + day - 1;
+        int dayOfEra = (yearOfEra * 365) + (yearOfEra / 4) - (yearOfEra / 100) + dayOfYear;
+        long days = (era * 146097L) + dayOfEra - 719468;
+        long local = (days * MILLIS_PER_DAY) + ((((hour * 60L) + minute) * 60L) + second) * 1000L;
+        if(fixedZone) return local - fixedOffset;
+        //the offset depends on the time itself, so it is looked up at the local time read as UTC (within a day of the real time) and checked once more
+        //(not from the raw offset, which is only the current standard offset of the zone)
+        int offset = zone.getOffset(local);
+        long time = local - offset;
+        int actual = zone.getOffset(time);
+        if(actual != offset) time = local - actual;
+        return time;
+    }
+}
@@ -0,0 +1,353 @@
+/**
+ * A compact, read-only copy of the follower graph of a FollowerStore (made by FollowerStore.snapshot()) for when the live trees take too much memory
+ * Followers and follows are kept as compressed sparse rows: one row per user (users are found by binary search in a sorted array of ids), rows sorted by id
+ * The ids of a row are stored as the differences between consecutive ids, written as variable length integers (7 bits per byte), so most ids take 1 or 2 bytes
+ * Dates are kept in parallel arrays, as seconds from the earliest date in an int[] if they are all whole seconds (otherwise as milliseconds in a long[])
+ * An edge takes about 10-20 bytes over both directions instead of two AVL Tree nodes per direction (about 200 bytes)
+ * Queries return the same results as the store it was made from, except that users who followed at exactly the same time come in order of id
+ * @author: 1525713
+ */
+
+package uk.ac.warwick.java.cs126.services;
+
+import java.util.Date;
+
+public class FollowerSnapshot implements IFollowerStore {
+
+    //the rows of one direction of the graph (followers or follows) in compressed sparse row form
+    class AdjacencyRows {
+        protected int[] offsets;    //position in ids of the first byte of each row (offsets[rows] is the end of the last row)
+        protected int[] edges;      //number of the first edge of each row, used to find its dates (edges[rows] is the number of edges)
+        protected byte[] ids;       //variable length differences between the ids of each row
+        protected int byteCount;
+        protected int rowCount;
+        protected long[] millis;    //the date of each edge in milliseconds, only if the dates aren't all whole seconds
+        protected int[] seconds;    //the date of each edge in seconds after base
+        protected long base;        //the earliest date in milliseconds
+
+        AdjacencyRows(int rows) {
+            offsets = new int[rows + 1];
+            edges = new int[rows + 1];
+            ids = new byte[Math.max(rows * 2, 16)];
+            byteCount = 0;
+            rowCount = 0;
+            millis = new long[Math.max(rows, 16)];
+            seconds = null;
+            base = 0;
+        }
+
+        //adds the next row, with ids sorted in ascending order (dates are kept as milliseconds until finish())
+        public void addRow(int[] rowIds, long[] rowDates, int n) {
+            int edge = edges[rowCount];
+            if(edge + n > millis.length) {
+                long[] tmp = new long[Math.max(millis.length * 2, edge + n)];
+                for(int i = 0; i < edge; i++) {
+                    tmp[i] = millis[i];
+                }
+                millis = tmp;
+            }
+            int previous = 0;
+            for(int i = 0; i < n; i++) {
+                //the first id is written as it is, the others as the difference from the previous one
+                write(rowIds[i] - previous);
+                previous = rowIds[i];
+                millis[edge + i] = rowDates[i];
+            }
+            rowCount++;
+            offsets[rowCount] = byteCount;
+            edges[rowCount] = edge + n;
+        }
+
+        //writes the value as an unsigned variable length integer, 7 bits per byte starting with the lowest ones (the top bit is set on every byte but the last)
+        private void write(int value) {
+            if(byteCount + 5 > ids.length) {
+                byte[] tmp = new byte[ids.length * 2];
+                for(int i = 0; i < byteCount; i++) {
+                    tmp[i] = ids[i];
+                }
+                ids = tmp;
+            }
+            while((value & ~0x7F) != 0) {
+                ids[byteCount] = (byte)((value & 0x7F) | 0x80);
+                byteCount++;
+                value >>>= 7;
+            }
+            ids[byteCount] = (byte)value;
+            byteCount++;
+        }
+
+        //trims the arrays and stores the dates as seconds if they all fit
+        public void finish() {
+            byte[] trimmedIds = new byte[byteCount];
+            for(int i = 0; i < byteCount; i++) {
+                trimmedIds[i] = ids[i];
+            }
+            ids = trimmedIds;
+            int n = edges[rowCount];
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            boolean wholeSeconds = true;
+            for(int i = 0; i < n; i++) {
+                if(millis[i] < min) min = millis[i];
+                if(millis[i] > max) max = millis[i];
+            }
+            for(int i = 0; (i < n) && wholeSeconds; i++) {
+                if( (millis[i] - min) % 1000 != 0 ) wholeSeconds = false;
+            }
+            if( (n > 0) && wholeSeconds && ((max - min) / 1000 <= Integer.MAX_VALUE) ) {
+                base = min;
+                seconds = new int[n];
+                for(int i = 0; i < n; i++) {
+                    seconds[i] = (int)((millis[i] - min) / 1000);
+                }
+                millis = null;
+            } else {
+                long[] trimmedMillis = new long[n];
+                for(int i = 0; i < n; i++) {
+                    trimmedMillis[i] = millis[i];
+                }
+                millis = trimmedMillis;
+            }
+        }
+
+        public int degree(int row) {
+            return edges[row + 1] - edges[row];
+        }
+
+        //the date of the edge in milliseconds
+        public long date(int edge) {
+            if(seconds != null) return base + (seconds[edge] * 1000L);
+            return millis[edge];
+        }
+
+        //fills the arrays with the ids (in ascending order) and dates of the row, returns their number
+        public int decode(int row, int[] rowIds, long[] rowDates) {
+            int position = offsets[row];
+            int edge = edges[row];
+            int n = degree(row);
+            int id = 0;
+            for(int i = 0; i < n; i++) {
+                int value = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = ids[position];
+                    position++;
+                    value |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while(b < 0);
+                id += value;
+                rowIds[i] = id;
+                if(rowDates != null) rowDates[i] = date(edge + i);
+            }
+            return n;
+        }
+
+        //checks whether the id is in the row, decoding it only up to the first id which isn't smaller
+        public boolean contains(int row, int target) {
+            int position = offsets[row];
+            int n = degree(row);
+            int id = 0;
+            for(int i = 0; i < n; i++) {
+                int value = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = ids[position];
+                    position++;
+                    value |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while(b < 0);
+                id += value;
+                if(id == target) return true;
+                if(id > target) return false;
+            }
+            return false;
+        }
+
+        //an estimate of the memory taken by the arrays in bytes
+        public long memory() {
+            long memory = (offsets.length * 4L) + (edges.length * 4L) + ids.length;
+            if(seconds != null) memory += seconds.length * 4L;
+            if(millis != null) memory += millis.length * 8L;
+            return memory;
+        }
+    }
+
+    protected int[] users;              //ids of every user with followers or follows, sorted in ascending order (the row of a user is its position)
+    protected int[] top;                //users with followers, most followed first
+    protected AdjacencyRows followers;
+    protected AdjacencyRows follows;
+
+    //rows are added by FollowerStore.snapshot() in the order of users
+    FollowerSnapshot(int[] users, int[] top) {
+        this.users = users;
+        this.top = top;
+        followers = new AdjacencyRows(users.length);
+        follows = new AdjacencyRows(users.length);
+    }
+
+    //called once all the rows were added
+    void finish() {
+        followers.finish();
+        follows.finish();
+    }
+
+    //the row of the user, or -1 if they have no followers or follows
+    protected int row(int uid) {
+        int low = 0;
+        int high = users.length - 1;
+        while(low <= high) {
+            int middle = (low + high) >>> 1;
+            if(users[middle] < uid) low = middle + 1;
+            else if(users[middle] > uid) high = middle - 1;
+            else return middle;
+        }
+        return -1;
+    }
+
+    //the snapshot is read-only, follows can only be added to the live store
+    public boolean addFollower(int uid1, int uid2, Date followDate) {
+        return false;
+    }
+
+    public int[] getFollowers(int uid) {
+        return getByDate(followers, row(uid));
+    }
+
+    public int[] getFollows(int uid) {
+        return getByDate(follows, row(uid));
+    }
+
+    //the ids of the row sorted in descending order by date
+    protected int[] getByDate(AdjacencyRows rows, int row) {
+        if(row < 0) return new int[0];
+        int n = rows.degree(row);
+        int[] ids = new int[n];
+        long[] dates = new long[n];
+        rows.decode(row, ids, dates);
+        sortByDate(ids, dates, 0, n, new int[n], new long[n]);
+        return ids;
+    }
+
+    public boolean isAFollower(int uidFollower, int uidFollows) {
+        int followerRow = row(uidFollower);
+        int followsRow = row(uidFollows);
+        if( (followerRow < 0) || (followsRow < 0) ) return false;
+        //the edge is in both rows, so the shorter one is decoded
+        if(followers.degree(followsRow) <= follows.degree(followerRow)) return followers.contains(followsRow, uidFollower);
+        return follows.contains(followerRow, uidFollows);
+    }
+
+    public int getNumFollowers(int uid) {
+        int row = row(uid);
+        if(row < 0) return 0;
+        return followers.degree(row);
+    }
+
+    public int[] getMutualFollowers(int uid1, int uid2) {
+        return intersect(followers, row(uid1), row(uid2));
+    }
+
+    public int[] getMutualFollows(int uid1, int uid2) {
+        return intersect(follows, row(uid1), row(uid2));
+    }
+
+    //merges two rows by id, keeping the earliest date of each mutual user, then sorts them latest first (as FollowerStore does)
+    protected int[] intersect(AdjacencyRows rows, int row1, int row2) {
+        if( (row1 < 0) || (row2 < 0) ) return new int[0];
+        int n1 = rows.degree(row1);
+        int n2 = rows.degree(row2);
+        int[] ids1 = new int[n1];
+        long[] dates1 = new long[n1];
+        int[] ids2 = new int[n2];
+        long[] dates2 = new long[n2];
+        rows.decode(row1, ids1, dates1);
+        rows.decode(row2, ids2, dates2);
+        int[] ids = new int[Math.min(n1, n2)];
+        long[] dates = new long[ids.length];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while( (i < n1) && (j < n2) ) {
+            if(ids1[i] < ids2[j]) i++;
+            else if(ids1[i] > ids2[j]) j++;
+            else {
+                ids[count] = ids1[i];
+                dates[count] = Math.min(dates1[i], dates2[j]);
+                count++;
+                i++;
+                j++;
+            }
+        }
+        sortByDate(ids, dates, 0, count, new int[count], new long[count]);
+        int[] mutual = new int[count];
+        for(int k = 0; k < count; k++) {
+            mutual[k] = ids[k];
+        }
+        return mutual;
+    }
+
+    //merge sort of the ids between from (inclusive) and to (exclusive) in descending order by their dates (equal dates keep their order)
+    private void sortByDate(int[] ids, long[] dates, int from, int to, int[] tmpIds, long[] tmpDates) {
+        if(to - from < 2) return;
+        int middle = (from + to) >>> 1;
+        sortByDate(ids, dates, from, middle, tmpIds, tmpDates);
+        sortByDate(ids, dates, middle, to, tmpIds, tmpDates);
+        int i = from;
+        int j = middle;
+        int k = from;
+        while( (i < middle) && (j < to) ) {
+            if(dates[i] >= dates[j]) {
+                tmpIds[k] = ids[i];
+                tmpDates[k] = dates[i];
+                i++;
+            } else {
+                tmpIds[k] = ids[j];
+                tmpDates[k] = dates[j];
+                j++;
+            }
+            k++;
+        }
+        while(i < middle) {
+            tmpIds[k] = ids[i];
+            tmpDates[k] = dates[i];
+            i++;
+            k++;
+        }
+        while(j < to) {
+            tmpIds[k] = ids[j];
+            tmpDates[k] = dates[j];
+            j++;
+            k++;
+        }
+        for(k = from; k < to; k++) {
+            ids[k] = tmpIds[k];
+            dates[k] = tmpDates[k];
+        }
+    }
+
+    public int[] getTopUsers() {
+        return getTopUsers(top.length);
+    }
+
+    //return only the k most followed users, sorted in descending order by number of followers
+    public int[] getTopUsers(int k) {
+        int n = Math.max(0, Math.min(k, top.length));
+        int[] topUsers = new int[n];
+        for(int i = 0; i < n; i++) {
+            topUsers[i] = top[i];
+        }
+        return topUsers;
+    }
+
+    //return the number of follow relations in the snapshot
+    public int getNumEdges() {
+        return followers.edges[followers.rowCount];
+    }
+
+    //return an estimate of the memory taken by the snapshot's arrays in bytes
+    public long getMemoryUsage() {
+        return (users.length * 4L) + (top.length * 4L) + followers.memory() + follows.memory();
+    }
+}
@@ -1,6 +1,13 @@
 /**
  * Hash map contains at each element an id and 4 AVL Trees of followers and follows of user with that id for easy insertion, acces and sorting (used by all methods except getTopUsers())
- * Doubly linked list of user ids sorted according to each user's popularity for easy sorting while adding (used by getTopUsers())
+ * Linked buckets of users with equal popularity (calculated based on followers), indexed by id, so each new follower moves a user up in O(1) (used by getTopUsers())
+ * In concurrent ingest mode, locations of the hash map are guarded by striped locks so many threads can add followers, and the ranking is rebuilt once at the end
+ * Paged versions of the queries walk the trees with a stack (or skip whole buckets of the ranking) and stop after the requested number of users
+ * The same cursors are available as int iterators and as spliterators for (parallel) IntStreams
+ * Every node of the AVL Trees knows the size of its subtree, so counts, positions and page offsets are found in O(log n)
+ * snapshot() copies the graph into a FollowerSnapshot of compressed rows, which answers the same queries in a fraction of the memory
+ * StoreSnapshot saves every user's rows of followers and follows, and restores them by building all four trees bottom-up
+ * Queries don't print anything, per-query counters and latency histograms can be turned on with setQueryStatsEnabled()
  * 
  * FollowHashMap based on HashMap class created with Shalin Doshi during CS126 labs
  * All AVL Trees in Relations class based on code found here: http://coding-for-fun-in-java.blogspot.co.uk/2012/04/self-balancing-tree-in-java.html
@@ -13,49 +20,20 @@ package uk.ac.warwick.java.cs126.services;
 import uk.ac.warwick.java.cs126.models.Weet;
 import uk.ac.warwick.java.cs126.models.User;
 
+import java.io.IOException;
 import java.util.Date;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
 
 
 public class FollowerStore implements IFollowerStore {
         
-    //class based on KeyValuePair class used in cs126 labs
-    class IdPopPair {
-        protected int id;
-        protected int pop; //pop stands for popularity (number of followers)
-        
-        public IdPopPair(int i) {
-            id = i;
-            pop = 1;
-        }
-        public int getId() {
-            return id;
-        }
-        public int getPop() {
-            return pop;
-        }
-        public void incPop() {
-            pop++;
-        }
-    }
-    
-    //class based on KeyValuePair class used in cs126 labs
-    class IdDatePair {
-        protected int id;
-        protected Date date;
-        
-        public IdDatePair(int i, Date d) {
-            id = i;
-            date = d;
-        }
-        
-        public int getId() {
-            return id;
-        }
-        public Date getDate() {
-            return date;
-        }
-    }
-    
     //class based on KeyValuePair class used in cs126 labs
     class IdRelationsPair {
 
@@ -153,14 +131,18 @@ public class FollowerStore implements IFollowerStore {
     class Node {
         protected int user; //the user id
         protected int height;   //length of the longest chain of nodes starting at this node
+        protected int size;     //the number of nodes in the subtree starting at this node
         protected Date date;    //the date on which this user followed/was followed
+        protected int order;    //orders relations on the same date, a relation added later has a larger order (the id and date nodes of a relation share it)
         protected Node left;    //root of the subtree to the left of this node
         protected Node right;   //root of the subtree to the right of this node
     
-        Node(int user, Date date) {
+        Node(int user, Date date, int order) {
             this.user = user;
             this.date = date;
+            this.order = order;
             height = 0;
+            size = 1;
             left = null;
             right = null;
         }
@@ -170,7 +152,6 @@ public class FollowerStore implements IFollowerStore {
         
         private Node root;
         private int size;
-        private int count;
         private boolean notHere;    //turns false when trying to insert a relation which exists already
         private boolean byId;       //true if the tree is sorted by id, false if by date
         
@@ -188,6 +169,64 @@ public class FollowerStore implements IFollowerStore {
             size++;
         }
         
+        //the number of nodes in the subtree (0 for an empty one)
+        private int size(Node tree) {
+            if(tree == null) return 0;
+            return tree.size;
+        }
+        
+        //counts the relations dated before time (or at it, if inclusive) in O(log n) using the subtree sizes (only possible if the tree is sorted by date)
+        public int countBefore(long time, boolean inclusive) {
+            if(byId) return 0;
+            int count = 0;
+            Node tree = root;
+            while(tree != null) {
+                long followed = tree.date.getTime();
+                if( (followed < time) || (inclusive && (followed == time)) ) {
+                    //this relation and every relation to its left count
+                    count += size(tree.left) + 1;
+                    tree = tree.right;
+                } else tree = tree.left;
+            }
+            return count;
+        }
+        
+        //returns the position in descending order of the relation with the date and order (which isn't searched for by user, as it is on the same date as others)
+        //in O(log n), or -1 if it isn't in the tree (only possible if the tree is sorted by date)
+        public int positionOf(long time, int order) {
+            if(byId) return -1;
+            int position = 0;
+            Node tree = root;
+            while(tree != null) {
+                long followed = tree.date.getTime();
+                //relations on the same date added later are to the left
+                if( (time > followed) || ( (time == followed) && (order < tree.order) ) ) tree = tree.right;
+                else if( (time == followed) && (order == tree.order) ) return position + size(tree.right);
+                else {
+                    //this relation and every relation to its right come before it
+                    position += size(tree.right) + 1;
+                    tree = tree.left;
+                }
+            }
+            return -1;
+        }
+        
+        //returns the node at position index in descending order (the largest node is at 0) in O(log n), or null if there is no such position
+        public Node select(int index) {
+            if( (index < 0) || (index >= size(root)) ) return null;
+            Node tree = root;
+            while(tree != null) {
+                int larger = size(tree.right);  //number of nodes that come before this one
+                if(index < larger) tree = tree.right;
+                else if(index == larger) return tree;
+                else {
+                    index -= larger + 1;
+                    tree = tree.left;
+                }
+            }
+            return null;
+        }
+        
         private Node rotateRight(Node x) {
              //the height of a tree is the number of nodes in the longest chain of nodes in that tree
             int lh; //the height of the left tree
@@ -215,6 +254,10 @@ public class FollowerStore implements IFollowerStore {
             
             if(lh >= rh) newRoot.height = lh + 1;
             else newRoot.height = rh + 1;
+            
+            //x is now below newRoot, so its size is updated first
+            x.size = size(x.left) + size(x.right) + 1;
+            newRoot.size = size(newRoot.left) + size(newRoot.right) + 1;
         
             // newRoot is the head of new tree to be returned
             return newRoot;
@@ -247,19 +290,23 @@ public class FollowerStore implements IFollowerStore {
             
             if(lh >= rh) newRoot.height = lh + 1;
             else newRoot.height = rh + 1;
+            
+            //x is now below newRoot, so its size is updated first
+            x.size = size(x.left) + size(x.right) + 1;
+            newRoot.size = size(newRoot.left) + size(newRoot.right) + 1;
         
             // newRoot is the head of new tree to be returned
             return newRoot;
         }
         
-        public void insertByDate(int user, Date date) {
+        public void insertByDate(int user, Date date, int order) {
             //before trying to insert, check the type of tree
             if(!byId) {
                 incSize();
-                root = insertByDate(root, user, date);
+                root = insertByDate(root, user, date, order);
             }//dont insert by date in a tree sorted by id
         }
-        public Node insertByDate(Node tree, int user, Date date) {
+        public Node insertByDate(Node tree, int user, Date date, int order) {
             
              //the height of a tree is the number of nodes in the longest chain of nodes in that tree
             int lh = 0; //the height of the left tree
@@ -269,13 +316,14 @@ public class FollowerStore implements IFollowerStore {
             int balance = 0;
             
             if(tree == null) {
-                tree = new Node(user, date);
+                tree = new Node(user, date, order);
                 return tree;
             } else if(date.getTime() > tree.date.getTime()) {
-                tree.right = insertByDate(tree.right, user, date);
-            } else if(date.getTime() <= date.getTime()) {
-                tree.left = insertByDate(tree.left, user, date);
+                tree.right = insertByDate(tree.right, user, date, order);
+            } else if(date.getTime() <= tree.date.getTime()) {
+                tree.left = insertByDate(tree.left, user, date, order);
             }            
+            tree.size++;
             
             //set the height of the new (modified) tree       
             if (tree.left != null) lh = tree.left.height;
@@ -286,11 +334,11 @@ public class FollowerStore implements IFollowerStore {
             balance = lh - rh;
             
             //left-left case
-            if( (balance > 1) && (date.getTime() <= tree.date.getTime()) ) {
+            if( (balance > 1) && (date.getTime() <= tree.left.date.getTime()) ) {
                 //rotate this right
                 return rotateRight(tree);
             }//left-right case
-            else if( (balance > 1) && (date.getTime() > tree.date.getTime()) ) {      
+            else if( (balance > 1) && (date.getTime() > tree.left.date.getTime()) ) {      
                 //rotate left tree left
                 tree.left = rotateLeft(tree.left);
                 //rotate this right
@@ -310,11 +358,11 @@ public class FollowerStore implements IFollowerStore {
             return tree;
         }
         
-        public boolean insertById(int user) {
+        public boolean insertById(int user, Date date, int order) {
             //check what type of tree this is
             if(byId) {
                 notHere = true; //assume the relation isnt here
-                root = insertById(root, user);
+                root = insertById(root, user, date, order);
                 if(notHere) incSize();  //if the relation wasn't in the tree, the nuber of relations has increased
                 return notHere;
             } else {
@@ -322,7 +370,7 @@ public class FollowerStore implements IFollowerStore {
                 return false;
             }
         }
-        public Node insertById(Node tree, int user) {
+        public Node insertById(Node tree, int user, Date date, int order) {
             
              //the height of a tree is the number of nodes in the longest chain of nodes in that tree
             int lh = 0; //the height of the left tree
@@ -332,18 +380,19 @@ public class FollowerStore implements IFollowerStore {
             int balance = 0;
             
             if(tree == null) {
-                tree = new Node(user, null);
+                tree = new Node(user, date, order);   //the date and order are kept so that relations can be merged and ordered by id
                 return tree;
             }
             else if(user > tree.user) {
-                tree.right = insertById(tree.right, user);
+                tree.right = insertById(tree.right, user, date, order);
             } else if(user < tree.user) {
-                tree.left = insertById(tree.left, user);
+                tree.left = insertById(tree.left, user, date, order);
             } 
             if(user == tree.user) {
                 notHere = false;
                 return tree;
             }    
+            if(notHere) tree.size++;    //only if the relation was inserted below this node
             
             //set the height of the new (modified) tree       
             if (tree.left != null) lh = tree.left.height;
@@ -354,21 +403,21 @@ public class FollowerStore implements IFollowerStore {
             balance = lh - rh;
             
             //left-left case
-            if( (balance > 1) && (user < tree.user) ) {
+            if( (balance > 1) && (user < tree.left.user) ) {
                 //rotate this right
                 return rotateRight(tree);
             }//left-right case
-            else if( (balance > 1) && (user > tree.user) ) {      
+            else if( (balance > 1) && (user > tree.left.user) ) {      
                 //rotate left tree left
                 tree.left = rotateLeft(tree.left);
                 //rotate this right
                 return rotateRight(tree);
             } //right-right case
-            else if( (balance < -1) && (user > tree.user) ) {       
+            else if( (balance < -1) && (user > tree.right.user) ) {       
                 //rotate this left
                 return rotateLeft(tree);
             }//right-left case
-            else if( (balance < -1) && (user < tree.user) ) {     
+            else if( (balance < -1) && (user < tree.right.user) ) {     
                 //rotate right tree right
                 tree.right = rotateRight(tree.right);
                 //rotate this left
@@ -377,46 +426,290 @@ public class FollowerStore implements IFollowerStore {
             return tree;
         }
         
+        //checks whether the user is in the tree by descending from the root (only possible if the tree is sorted by id)
+        public boolean contains(int user) {
+            return find(user) != null;
+        }
+        //returns the node of the user, or null if they are not in the tree (only possible if the tree is sorted by id)
+        public Node find(int user) {
+            if(!byId) return null;
+            Node tree = root;
+            while(tree != null) {
+                if(user > tree.user) tree = tree.right;
+                else if(user < tree.user) tree = tree.left;
+                else return tree;
+            }
+            return null;
+        }
+        
+        public Node getRoot() {
+            return root;
+        }
+        
+        //replaces the tree with a balanced one built bottom-up from the relations between from (inclusive) and to (exclusive) of the arrays, sorted in descending
+        //order of the tree (highest id first, or latest first with relations on the same date in the order they were added, which is where insert would have put them)
+        public void load(int[] users, Date[] dates, int[] orders, int from, int to) {
+            root = build(users, dates, orders, from, to - 1);
+            size = to - from;
+        }
+        private Node build(int[] users, Date[] dates, int[] orders, int lo, int hi) {
+            if(lo > hi) return null;
+            int mid = (lo + hi) >>> 1;
+            Node tree = new Node(users[mid], dates[mid], orders[mid]);
+            tree.right = build(users, dates, orders, lo, mid - 1);  //larger relations go to the right
+            tree.left = build(users, dates, orders, mid + 1, hi);   //smaller relations go to the left
+            tree.size = hi - lo + 1;
+            //set the height the same way insert does (a leaf has height 0)
+            if( (tree.left != null) || (tree.right != null) ) {
+                int lh = 0;
+                int rh = 0;
+                if (tree.left != null) lh = tree.left.height;
+                if (tree.right != null) rh = tree.right.height;
+                if(lh >= rh) tree.height = lh + 1;
+                else tree.height = rh + 1;
+            }
+            return tree;
+        }
+        
         //returns an array of all the users (sorted according to the type of tree)
+        //the position is passed down the walk instead of kept on the tree, so any number of threads can read the tree at the same time
         public int[] getInOrder() {
             if(size > 0) {
                 int[] allUsers = new int[size];
-                count = 0;
-                getInOrder(root, allUsers);
+                getInOrder(root, allUsers, 0);
                 return allUsers;
             }
             return new int[0];
         }
-        public void getInOrder(Node tree, int[] allUsers) {
+        //adds the users of the subtree to the array from position count, returns the position after the last one
+        public int getInOrder(Node tree, int[] allUsers, int count) {
             if(tree != null) {
-                getInOrder(tree.right, allUsers);   //get all users to the right of this node
+                count = getInOrder(tree.right, allUsers, count);   //get all users to the right of this node
                 allUsers[count] = tree.user;        //add this user to the array
                 count++;
-                getInOrder(tree.left, allUsers);    //get all users to the left of this node
+                count = getInOrder(tree.left, allUsers, count);    //get all users to the left of this node
             }
+            return count;
         }
+    }
+    
+    //walks a tree in ascending or descending order using a stack of the nodes still to be visited, so no list of the whole tree is built
+    class TreeCursor {
+        private Node[] stack;
+        private int top;
+        private boolean descending;
         
-        //returns the head of a list containing the users sorted by date (with each of their dates as well)
-        public ListElement<IdDatePair> getWithDate() {
-            //only possible if tree is sorted by date (check)
-            if(!byId) {
-                ListElement<IdDatePair> followList = null;
-                followList = getWithDate(root, followList);
-                return followList;
-            } else return null;
+        //starts at the smallest node
+        TreeCursor(AVLTree tree) {
+            this(tree, false);
         }
-        public ListElement<IdDatePair> getWithDate(Node tree, ListElement<IdDatePair> followList) {
-            if(tree != null) {
-                followList = getWithDate(tree.left, followList);    //get all users to the left of this node
-                //get this one
-                ListElement<IdDatePair> tmp = new ListElement<>(new IdDatePair(tree.user, tree.date));
-                //connect to doubly linked list
-                tmp.setNext(followList);
-                if(followList != null) followList.setPrev(tmp);
-                followList = tmp;
-                followList = getWithDate(tree.right, followList);
+        
+        //starts at the smallest or (if descending) the largest node
+        TreeCursor(AVLTree tree, boolean descending) {
+            init(tree, descending);
+            if(descending) pushRight(tree.getRoot());
+            else pushLeft(tree.getRoot());
+        }
+        
+        //walks a tree sorted by date in descending order, starting at the latest node on or before time (found in O(log n))
+        TreeCursor(AVLTree tree, long time) {
+            init(tree, true);
+            Node node = tree.getRoot();
+            while(node != null) {
+                if(node.date.getTime() <= time) {
+                    //this node is valid and later ones to the right might be too, earlier ones to the left are visited after it
+                    stack[top] = node;
+                    top++;
+                    node = node.right;
+                } else node = node.left;
+            }
+        }
+        
+        //walks a tree in descending order, starting at the node at position index (found in O(log n) using the subtree sizes)
+        TreeCursor(AVLTree tree, int index) {
+            init(tree, true);
+            Node node = tree.getRoot();
+            while(node != null) {
+                int larger = (node.right != null) ? node.right.size : 0;
+                if(index <= larger) {
+                    //this node comes after the starting one, with the nodes to its left
+                    stack[top] = node;
+                    top++;
+                    if(index == larger) break;
+                    node = node.right;
+                } else {
+                    index -= larger + 1;
+                    node = node.left;
+                }
+            }
+        }
+        
+        //a cursor over the nodes of stack (the top of the stack is visited first), only used by split()
+        private TreeCursor(Node[] stack, int top, boolean descending) {
+            this.stack = stack;
+            this.top = top;
+            this.descending = descending;
+        }
+        
+        private void init(AVLTree tree, boolean descending) {
+            Node root = tree.getRoot();
+            stack = new Node[(root != null ? root.height : 0) + 2];
+            top = 0;
+            this.descending = descending;
+        }
+        
+        //pushes the node and the chain of nodes to its left (the smallest ones are visited first)
+        private void pushLeft(Node tree) {
+            while(tree != null) {
+                stack[top] = tree;
+                top++;
+                tree = tree.left;
+            }
+        }
+        
+        //pushes the node and the chain of nodes to its right (the largest ones are visited first)
+        private void pushRight(Node tree) {
+            while(tree != null) {
+                stack[top] = tree;
+                top++;
+                tree = tree.right;
+            }
+        }
+        
+        //the number of nodes still to be visited: each node on the stack and the subtree visited after it
+        public long remaining() {
+            long remaining = 0;
+            for(int i = 0; i < top; i++) {
+                Node rest = descending ? stack[i].left : stack[i].right;
+                remaining += 1 + ((rest != null) ? rest.size : 0);
+            }
+            return remaining;
+        }
+        
+        public boolean hasNext() {
+            return top > 0;
+        }
+        
+        //returns the next node without moving past it
+        public Node peek() {
+            return stack[top - 1];
+        }
+        
+        public Node next() {
+            top--;
+            Node next = stack[top];
+            if(descending) pushRight(next.left);
+            else pushLeft(next.right);
+            return next;
+        }
+        
+        //splits the nodes still to be visited: the returned cursor visits the first part and this one the rest (null if they can't be split)
+        //each node on the stack stands for itself and the subtree still to be visited after it, so the bottom node stays here and the others are given away
+        public TreeCursor split() {
+            if(top == 0) return null;
+            Node single = null;    //a node which has to be visited before the rest when the only node on the stack is split up
+            if(top == 1) {
+                top = 0;
+                single = stack[0];
+                if(descending) pushRight(single.left);
+                else pushLeft(single.right);
+                if(top == 0) {
+                    //there is nothing left of it to split
+                    stack[0] = single;
+                    top = 1;
+                    return null;
+                }
+            }
+            Node[] first = new Node[stack.length + 1];
+            int firstTop = 0;
+            for(int i = 1; i < top; i++) {
+                first[firstTop] = stack[i];
+                firstTop++;
+            }
+            if(single != null) {
+                //a copy without children so only this node is visited
+                first[firstTop] = new Node(single.user, single.date, single.order);
+                firstTop++;
+            }
+            top = 1;
+            return new TreeCursor(first, firstTop, descending);
+        }
+        
+        //moves past the nodes dated at time up to (and including) the one with the passed user (if there is no such node, past all of them)
+        public void skipPast(long time, int user) {
+            while( hasNext() && (peek().date.getTime() == time) ) {
+                if(next().user == user) return;
             }
-            return followList;
+        }
+        
+        //moves past n nodes
+        public void skip(int n) {
+            for(int i = 0; (i < n) && hasNext(); i++) {
+                next();
+            }
+        }
+        
+        //returns the users of up to limit of the next nodes
+        public int[] take(int limit) {
+            if(limit < 0) limit = 0;
+            int[] page = new int[limit];
+            int count = 0;
+            while( (count < limit) && hasNext() ) {
+                page[count] = next().user;
+                count++;
+            }
+            if(count == limit) return page;
+            int[] shorter = new int[count];
+            for(int i = 0; i < count; i++) {
+                shorter[i] = page[i];
+            }
+            return shorter;
+        }
+    }
+    
+    //iterates over the user ids of a TreeCursor without boxing them
+    class IdIterator implements PrimitiveIterator.OfInt {
+        private TreeCursor cursor;
+        
+        IdIterator(TreeCursor cursor) {
+            this.cursor = cursor;
+        }
+        
+        public boolean hasNext() {
+            return cursor.hasNext();
+        }
+        
+        public int nextInt() {
+            return cursor.next().user;
+        }
+    }
+    
+    //lets a TreeCursor be used by (parallel) IntStreams
+    class IdSpliterator implements Spliterator.OfInt {
+        private TreeCursor cursor;
+        
+        IdSpliterator(TreeCursor cursor) {
+            this.cursor = cursor;
+        }
+        
+        public boolean tryAdvance(IntConsumer action) {
+            if(!cursor.hasNext()) return false;
+            action.accept(cursor.next().user);
+            return true;
+        }
+        
+        public Spliterator.OfInt trySplit() {
+            TreeCursor first = cursor.split();
+            if(first == null) return null;
+            return new IdSpliterator(first);
+        }
+        
+        public long estimateSize() {
+            return cursor.remaining();
+        }
+        
+        public int characteristics() {
+            return ORDERED | SIZED | SUBSIZED;
         }
     }
     
@@ -435,9 +728,11 @@ public class FollowerStore implements IFollowerStore {
         }
         
         //try to insert into .ById and if "notHere" gets set to false, dont insert in .ByDate
+        //relations are never removed, so the number of relations so far is the order of the new one
         public boolean addFollower(int uid, Date date) {
-            if(followersById.insertById(uid)) {
-                followersByDate.insertByDate(uid, date);
+            int order = followersByDate.size();
+            if(followersById.insertById(uid, date, order)) {
+                followersByDate.insertByDate(uid, date, order);
                 return true;
             } else {
                 return false;
@@ -445,8 +740,9 @@ public class FollowerStore implements IFollowerStore {
         }
         
         public boolean addFollowing(int uid, Date date) {
-            if(followingById.insertById(uid)) {
-                followingByDate.insertByDate(uid, date);
+            int order = followingByDate.size();
+            if(followingById.insertById(uid, date, order)) {
+                followingByDate.insertByDate(uid, date, order);
                 return true;
             } else {
                 return false;
@@ -471,11 +767,21 @@ public class FollowerStore implements IFollowerStore {
             return followersByDate.size();
         }
         
-        public ListElement<IdDatePair> getFollowersWithDate() {
-            return followersByDate.getWithDate();
+        public boolean hasFollower(int uid) {
+            return followersById.contains(uid);
+        }
+        
+        public AVLTree getFollowersTree() {
+            return followersById;
         }
-        public ListElement<IdDatePair> getFollowingWithDate() {
-            return followingByDate.getWithDate();            
+        public AVLTree getFollowingTree() {
+            return followingById;
+        }
+        public AVLTree getFollowersDateTree() {
+            return followersByDate;
+        }
+        public AVLTree getFollowingDateTree() {
+            return followingByDate;
         }
     }
     //class based on HashMap class used in labs
@@ -484,6 +790,7 @@ public class FollowerStore implements IFollowerStore {
 
         protected IdRelationsPairLinkedList[] table;
         protected int maxLocation;
+        protected ReentrantLock[] stripes;  //each lock guards every location whose index has the same remainder by the number of locks (used by addConcurrent)
         
         public FollowHashMap() {
             this(16001);
@@ -499,33 +806,125 @@ public class FollowerStore implements IFollowerStore {
             for(int i = 0; i < table.length; i++) {
                 table[i] = new IdRelationsPairLinkedList();
             }
+            stripes = new ReentrantLock[STRIPES];
+            for(int i = 0; i < stripes.length; i++) {
+                stripes[i] = new ReentrantLock();
+            }
         }
         
         //adds the following relationship to id1, and the followed relationship to id2
         public boolean add(int id1, int id2, Date date) {
+            if(!addFollowing(id1, id2, date)) return false;
+            return addFollower(id2, id1, date);
+        }
+        
+        //same as add, but locks the stripe of each user's location while changing their relations so that many threads can add at the same time
+        public boolean addConcurrent(int id1, int id2, Date date) {
+            ReentrantLock lock = stripes[(id1 % table.length) % stripes.length];
+            lock.lock();
+            try {
+                if(!addFollowing(id1, id2, date)) return false;
+            } finally {
+                lock.unlock();
+            }
+            //the locks are never held together, so threads can't wait on each other in a cycle
+            lock = stripes[(id2 % table.length) % stripes.length];
+            lock.lock();
+            try {
+                return addFollower(id2, id1, date);
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        //adds id2 to the users followed by id1
+        private boolean addFollowing(int id1, int id2, Date date) {
             int location = id1 % table.length;
             //check if there are any relations for this user already
             IdRelationsPair pair = table[location].get(id1);
-            if(pair != null) {
-                if(!pair.getRelations().addFollowing(id2, date))
-                    return false;
-            } else {
+            if(pair == null) {
                 //if not, create the pair and add this relation
-                table[location].add(new IdRelationsPair(id1));
-                //sanity check
-                if(!table[location].get(id1).getRelations().addFollowing(id2, date))
-                    return false;
+                pair = new IdRelationsPair(id1);
+                table[location].add(pair);
             }
-            location = id2 % table.length;
+            return pair.getRelations().addFollowing(id2, date);
+        }
+        
+        //adds id1 to the followers of id2
+        private boolean addFollower(int id2, int id1, Date date) {
+            int location = id2 % table.length;
             //check if there are any relations for this user already
-            pair = table[location].get(id2);
-            if(pair != null) {               
-                return pair.getRelations().addFollower(id1, date);
-            } else {
+            IdRelationsPair pair = table[location].get(id2);
+            if(pair == null) {
                 //if not, create the pair and add this relation
-                table[location].add(new IdRelationsPair(id2));
-                //sanity check
-                return table[location].get(id2).getRelations().addFollower(id1, date);
+                pair = new IdRelationsPair(id2);
+                table[location].add(pair);
+            }
+            return pair.getRelations().addFollower(id1, date);
+        }
+        
+        //returns the number of users with at least one follower
+        public int countFollowed() {
+            int count = 0;
+            for(int i = 0; i < table.length; i++) {
+                ListElement<IdRelationsPair> tmp = table[i].getHead();
+                while(tmp != null) {
+                    if(tmp.getValue().getRelations().getNumFollowers() > 0) count++;
+                    tmp = tmp.getNext();
+                }
+            }
+            return count;
+        }
+        
+        //returns the ids of every user with at least one follower or follow
+        public int[] getUserIds() {
+            int count = 0;
+            for(int i = 0; i < table.length; i++) {
+                count += table[i].size();
+            }
+            int[] ids = new int[count];
+            count = 0;
+            for(int i = 0; i < table.length; i++) {
+                ListElement<IdRelationsPair> tmp = table[i].getHead();
+                while(tmp != null) {
+                    ids[count] = tmp.getValue().getId();
+                    count++;
+                    tmp = tmp.getNext();
+                }
+            }
+            return ids;
+        }
+        
+        //adds a user without any relations and returns their (empty) relations, or null if the user is already in the map
+        public Relations addUser(int id) {
+            int location = id % table.length;
+            if(table[location].get(id) != null) return null;
+            IdRelationsPair pair = new IdRelationsPair(id);
+            table[location].add(pair);
+            return pair.getRelations();
+        }
+        
+        //returns the relations of the user, or null if they have none
+        public Relations getRelations(int id) {
+            IdRelationsPair pair = table[id % table.length].get(id);
+            if(pair == null) return null;
+            return pair.getRelations();
+        }
+        
+        //fills the arrays with the id and number of followers of every user with at least one follower (arrays sized using countFollowed())
+        public void getPopularities(int[] ids, int[] pops) {
+            int count = 0;
+            for(int i = 0; i < table.length; i++) {
+                ListElement<IdRelationsPair> tmp = table[i].getHead();
+                while(tmp != null) {
+                    int pop = tmp.getValue().getRelations().getNumFollowers();
+                    if(pop > 0) {
+                        ids[count] = tmp.getValue().getId();
+                        pops[count] = pop;
+                        count++;
+                    }
+                    tmp = tmp.getNext();
+                }
             }
         }
         
@@ -572,6 +971,67 @@ public class FollowerStore implements IFollowerStore {
             }
         }
         
+        //get up to limit followers of passed user sorted by date, after the first offset ones
+        public int[] getFollowersDate(int id, int offset, int limit) {
+            IdRelationsPair pair = table[id % table.length].get(id);
+            if(pair == null) return new int[0];
+            TreeCursor cursor = new TreeCursor(pair.getRelations().getFollowersDateTree(), Math.max(offset, 0));
+            return cursor.take(limit);
+        }
+        //get up to limit followers of passed user sorted by date, after the follower with the passed date and id (the last one of the previous page)
+        public int[] getFollowersDateOlderThan(int id, long time, int follower, int limit) {
+            IdRelationsPair pair = table[id % table.length].get(id);
+            if(pair == null) return new int[0];
+            TreeCursor cursor = new TreeCursor(pair.getRelations().getFollowersDateTree(), time);
+            cursor.skipPast(time, follower);
+            return cursor.take(limit);
+        }
+        //get up to limit users followed by passed user sorted by date, after the first offset ones
+        public int[] getFollowingDate(int id, int offset, int limit) {
+            IdRelationsPair pair = table[id % table.length].get(id);
+            if(pair == null) return new int[0];
+            TreeCursor cursor = new TreeCursor(pair.getRelations().getFollowingDateTree(), Math.max(offset, 0));
+            return cursor.take(limit);
+        }
+        //count the followers of passed user who followed before time (or at it, if inclusive)
+        public int countFollowersBefore(int id, long time, boolean inclusive) {
+            IdRelationsPair pair = table[id % table.length].get(id);
+            if(pair == null) return 0;
+            return pair.getRelations().getFollowersDateTree().countBefore(time, inclusive);
+        }
+        //get the follower of passed user at position index when sorted by date (latest first), or -1 if there is no such position
+        public int getFollowerAt(int id, int index) {
+            IdRelationsPair pair = table[id % table.length].get(id);
+            if(pair == null) return -1;
+            Node node = pair.getRelations().getFollowersDateTree().select(index);
+            if(node == null) return -1;
+            return node.user;
+        }
+        
+        //a cursor over the followers of passed user sorted by date (latest first)
+        public TreeCursor followersCursor(int id) {
+            IdRelationsPair pair = table[id % table.length].get(id);
+            if(pair == null) return new TreeCursor(new AVLTree(false), true);
+            return new TreeCursor(pair.getRelations().getFollowersDateTree(), true);
+        }
+        //a cursor over the users followed by passed user sorted by date (latest first)
+        public TreeCursor followingCursor(int id) {
+            IdRelationsPair pair = table[id % table.length].get(id);
+            if(pair == null) return new TreeCursor(new AVLTree(false), true);
+            return new TreeCursor(pair.getRelations().getFollowingDateTree(), true);
+        }
+        
+        //checks if follower follows the user with id=id without building the array of followers
+        public boolean isFollower(int follower, int id) {
+            int location = id % table.length;
+            IdRelationsPair pair = table[location].get(id);
+            //if user has no relations, nobody follows them
+            if(pair != null) {
+                return pair.getRelations().hasFollower(follower);
+            }
+            return false;
+        }
+        
         //returnsthe number of followers this user has
         public int getNumFollowers(int id) {
             int location = id % table.length;
@@ -583,245 +1043,785 @@ public class FollowerStore implements IFollowerStore {
             return 0;
         }
         
-        //gets an array of mutual follows of users with thenpassed ids
+        //gets an array of mutual follows of users with the passed ids, sorted in descending order by the earliest date of the two relations
         public int[] getMutualFollows(int id1, int id2) {
-            int location = id1 % table.length;
-            int count = 0;  //counts found users to declare array to be returned with appropriate size
-            IdRelationsPair pair = table[location].get(id1);
-            //lists which will store follows for each user
-            ListElement<IdDatePair> follows1 = null;
-            ListElement<IdDatePair> follows2 = null;
-            ListElement<IdDatePair> mutual = null;
-            if(pair != null) {
-                follows1 = pair.getRelations().getFollowingWithDate();
-                if(follows1 == null) return new int[0]; //if this user has no follows, there are no mutual follows
-            } else return new int[0];   //if this user has no follows, there are no mutual follows
-            location = id2 % table.length;
-            pair = table[location].get(id2);
-            if(pair != null) {
-                follows2 = pair.getRelations().getFollowingWithDate();
-                if(follows2 == null) return new int[0]; //if this user has no follows, there are no mutual follows
-            } else return new int[0];   //if this user has no follows, there are no mutual follows
-            
-            //create an array of mutual follows from the lists (each with the earliest date of the two relations)
-            while(follows1 != null) {
-                ListElement<IdDatePair> tmp = follows2;
-                while(tmp != null) {
-                    if(tmp.getValue().getId() == follows1.getValue().getId()) {
+            IdRelationsPair pair1 = table[id1 % table.length].get(id1);
+            IdRelationsPair pair2 = table[id2 % table.length].get(id2);
+            //if either user has no follows, there are no mutual follows
+            if( (pair1 == null) || (pair2 == null) ) return new int[0];
+            return intersect(pair1.getRelations().getFollowingTree(), pair2.getRelations().getFollowingTree());
+        }
+        //gets an array of mutual followers of users with the passed ids, sorted in descending order by the earliest date of the two relations
+        public int[] getMutualFollowers(int id1, int id2) {
+            IdRelationsPair pair1 = table[id1 % table.length].get(id1);
+            IdRelationsPair pair2 = table[id2 % table.length].get(id2);
+            //if either user has no followers, there are no mutual followers
+            if( (pair1 == null) || (pair2 == null) ) return new int[0];
+            return intersect(pair1.getRelations().getFollowersTree(), pair2.getRelations().getFollowersTree());
+        }
+        
+        //returns the users in both trees (sorted by id), sorted in descending order by the earliest of their two dates
+        public int[] intersect(AVLTree tree1, AVLTree tree2) {
+            AVLTree small = tree1;
+            AVLTree large = tree2;
+            if(small.size() > large.size()) {
+                small = tree2;
+                large = tree1;
+            }
+            int[] ids = new int[small.size()];      //mutual users
+            long[] dates = new long[small.size()];  //earliest date of the two relations of each mutual user
+            int count = 0;
+            TreeCursor cursor1 = new TreeCursor(small);
+            if( (long)small.size() * 32 < large.size() ) {
+                //the sizes are very different - look up each user of the small tree in the large one instead of walking it
+                while(cursor1.hasNext()) {
+                    Node node1 = cursor1.next();
+                    Node node2 = large.find(node1.user);
+                    if(node2 != null) {
+                        ids[count] = node1.user;
+                        dates[count] = Math.min(node1.date.getTime(), node2.date.getTime());
                         count++;
-                        if(tmp.getValue().getDate().compareTo(follows1.getValue().getDate()) <= 0) {
-                            //this is earlier
-                            mutual = addToMutual(mutual, tmp.getValue());
-                        } else mutual = addToMutual(mutual, follows1.getValue());
                     }
-                    tmp = tmp.getNext();
                 }
-                follows1 = follows1.getNext();
-            }
-            int[] mutualFollows = new int[count];   //array to be returned, with according size
-            int i  = 0;
-            //move users from list into array
-            while(mutual != null && i < count) {
-                mutualFollows[i] = mutual.getValue().getId();
-                System.out.println(mutualFollows[i]);
-                mutual = mutual.getNext();
-                i++;
-            }
-            return mutualFollows;
-        }
-        //gets an array of mutual followers of users with thenpassed ids        
-        public int[] getMutualFollowers(int id1, int id2) {
-            int location = id1 % table.length;
-            int count = 0;//counts found users to declare array to be returned with appropriate size
-            IdRelationsPair pair = table[location].get(id1);
-            //lists which will store follows for each user
-            ListElement<IdDatePair> followers1 = null;
-            ListElement<IdDatePair> followers2 = null;
-            ListElement<IdDatePair> mutual = null;
-            if(pair != null) {
-                followers1 = pair.getRelations().getFollowersWithDate();
-                if(followers1 == null) return new int[0];   //if this user has no followers, there are no mutual follows
-            } else return new int[0];   //if this user has no followers, there are no mutual follows
-            location = id2 % table.length;
-            pair = table[location].get(id2);
-            if(pair != null) {
-                followers2 = pair.getRelations().getFollowersWithDate();
-                if(followers2 == null) return new int[0];   //if this user has no followers, there are no mutual follows
-            } else return new int[0];   //if this user has no followerss, there are no mutual follows
-            
-            //create a list of mutual followers (each with the earliest date of the two relations)
-            while(followers1 != null) {
-                ListElement<IdDatePair> tmp = followers2;
-                while(tmp != null) {
-                    if(tmp.getValue().getId() == followers1.getValue().getId()) {
+            } else if(small.size() > 0) {
+                //merge both trees in ascending order by id
+                TreeCursor cursor2 = new TreeCursor(large);
+                Node node1 = cursor1.next();
+                Node node2 = cursor2.hasNext() ? cursor2.next() : null;
+                while( (node1 != null) && (node2 != null) ) {
+                    if(node1.user < node2.user) {
+                        node1 = cursor1.hasNext() ? cursor1.next() : null;
+                    } else if(node1.user > node2.user) {
+                        node2 = cursor2.hasNext() ? cursor2.next() : null;
+                    } else {
+                        ids[count] = node1.user;
+                        dates[count] = Math.min(node1.date.getTime(), node2.date.getTime());
                         count++;
-                        if(tmp.getValue().getDate().compareTo(followers1.getValue().getDate()) <= 0) {
-                            //this is earlier
-                            mutual = addToMutual(mutual, tmp.getValue());
-                        } else mutual = addToMutual(mutual, followers1.getValue());
+                        node1 = cursor1.hasNext() ? cursor1.next() : null;
+                        node2 = cursor2.hasNext() ? cursor2.next() : null;
                     }
-                    tmp = tmp.getNext();
                 }
-                followers1 = followers1.getNext();
-            }
-            int[] mutualFollowers = new int[count]; //array to be returned
-            int i = 0;
-            //move users from list into array
-            while(mutual != null && i < count) {
-                mutualFollowers[i] = mutual.getValue().getId();
-                System.out.println(mutualFollowers[i]);
-                mutual = mutual.getNext();
+            }
+            //sort the mutual users once, latest first
+            sortByDate(ids, dates, 0, count, new int[count], new long[count]);
+            int[] mutual = new int[count];
+            for(int i = 0; i < count; i++) {
+                mutual[i] = ids[i];
+            }
+            return mutual;
+        }
+        
+        //merge sort of the ids between from (inclusive) and to (exclusive) in descending order by their dates (tmpIds and tmpDates are used while merging)
+        private void sortByDate(int[] ids, long[] dates, int from, int to, int[] tmpIds, long[] tmpDates) {
+            if(to - from < 2) return;
+            int middle = (from + to) >>> 1;
+            sortByDate(ids, dates, from, middle, tmpIds, tmpDates);
+            sortByDate(ids, dates, middle, to, tmpIds, tmpDates);
+            int i = from;
+            int j = middle;
+            int k = from;
+            while( (i < middle) && (j < to) ) {
+                if(dates[i] >= dates[j]) {
+                    tmpIds[k] = ids[i];
+                    tmpDates[k] = dates[i];
+                    i++;
+                } else {
+                    tmpIds[k] = ids[j];
+                    tmpDates[k] = dates[j];
+                    j++;
+                }
+                k++;
+            }
+            while(i < middle) {
+                tmpIds[k] = ids[i];
+                tmpDates[k] = dates[i];
                 i++;
+                k++;
             }
-            return mutualFollowers;
-        }
-        //add the passed relation (id and date) to the passed list
-        public ListElement<IdDatePair> addToMutual(ListElement<IdDatePair> mutual, IdDatePair pair) {
-            if(mutual == null) return new ListElement<>(pair);
-            ListElement<IdDatePair> newPair = new ListElement<>(pair);
-            ListElement<IdDatePair> tmp = mutual;
-            while(tmp != null) {
-                if(newPair.getValue().getDate().compareTo(tmp.getValue().getDate()) >= 0) {
-                    if(tmp == mutual) {
-                        newPair.setNext(mutual);
-                        mutual.setPrev(newPair);
-                        return newPair;
-                    } else {
-                        newPair.setPrev(tmp.getPrev());
-                        newPair.setNext(tmp);
-                        tmp.getPrev().setNext(newPair);
-                        tmp.setPrev(newPair);
-                        return mutual;
-                    }
-                } else if(tmp.getNext() == null) {
-                    tmp.setNext(newPair);
-                    newPair.setPrev(tmp);
-                    return mutual;
-                } else tmp = tmp.getNext();
+            while(j < to) {
+                tmpIds[k] = ids[j];
+                tmpDates[k] = dates[j];
+                j++;
+                k++;
+            }
+            for(k = from; k < to; k++) {
+                ids[k] = tmpIds[k];
+                dates[k] = tmpDates[k];
+            }
+        }
+    }
+    
+    //a user in the popularity ranking, linked to the users with the same number of followers
+    class RankNode {
+        protected int id;
+        protected PopBucket bucket;     //the bucket of users with the same popularity as this user
+        protected RankNode prev;        //user that got to this popularity before this one
+        protected RankNode next;        //user that got to this popularity after this one
+        
+        RankNode(int id) {
+            this.id = id;
+        }
+    }
+    
+    //all the users with the same popularity (pop stands for popularity - number of followers), in the order they reached it
+    class PopBucket {
+        protected int pop;
+        protected int size;     //number of users in the bucket
+        protected RankNode head;
+        protected RankNode tail;
+        protected PopBucket higher;     //bucket of users with the next higher popularity
+        protected PopBucket lower;      //bucket of users with the next lower popularity
+        
+        PopBucket(int pop) {
+            this.pop = pop;
+        }
+        
+        public void append(RankNode node) {
+            size++;
+            node.bucket = this;
+            node.next = null;
+            node.prev = tail;
+            if(tail != null) tail.next = node;
+            else head = node;
+            tail = node;
+        }
+        
+        public void remove(RankNode node) {
+            size--;
+            if(node.prev != null) node.prev.next = node.next;
+            else head = node.next;
+            if(node.next != null) node.next.prev = node.prev;
+            else tail = node.prev;
+            node.prev = null;
+            node.next = null;
+        }
+        
+        public boolean isEmpty() {
+            return head == null;
+        }
+    }
+    
+    //open addressing hash map (linear probing) from user id to their node in the ranking
+    class RankIndex {
+        protected int[] keys;
+        protected RankNode[] values;    //a null value marks an empty location
+        protected int size;
+        protected int mask;             //table length - 1 (the length is always a power of 2)
+        protected int threshold;        //number of users at which the table is doubled
+        
+        public RankIndex() {
+            initTable(1024);
+        }
+        
+        protected void initTable(int capacity) {
+            keys = new int[capacity];
+            values = new RankNode[capacity];
+            mask = capacity - 1;
+            threshold = capacity * 3 / 4;   //load factor of 0.75
+        }
+        
+        //spreads the bits of the id so that consecutive ids don't form long runs of occupied locations
+        private int hash(int key) {
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+        
+        public RankNode get(int key) {
+            int location = hash(key) & mask;
+            while(values[location] != null) {
+                if(keys[location] == key) return values[location];
+                location = (location + 1) & mask;
+            }
+            return null;
+        }
+        
+        //only called for ids that aren't in the map yet
+        public void put(int key, RankNode node) {
+            int location = hash(key) & mask;
+            while(values[location] != null) location = (location + 1) & mask;
+            keys[location] = key;
+            values[location] = node;
+            size++;
+            if(size > threshold) resize();
+        }
+        
+        //doubles the table and moves every node to its new location
+        private void resize() {
+            int[] oldKeys = keys;
+            RankNode[] oldValues = values;
+            initTable(oldKeys.length << 1);
+            for(int i = 0; i < oldKeys.length; i++) {
+                if(oldValues[i] != null) {
+                    int location = hash(oldKeys[i]) & mask;
+                    while(values[location] != null) location = (location + 1) & mask;
+                    keys[location] = oldKeys[i];
+                    values[location] = oldValues[i];
+                }
             }
-            return mutual; //just for java to be pleased
         }
     }
     
-    //a linked list of the top users (most followed)
+    //the top users (most followed), kept in buckets of equal popularity so that a new follower only moves a user to the next bucket
     class TopList {
-        ListElement<IdPopPair> head;    //end from which search starts
-        ListElement<IdPopPair> tail;    //end at which new users are inserted
+        PopBucket highest;  //end from which search starts
+        PopBucket lowest;   //end at which new users are inserted
+        RankIndex index;    //finds the node of a user without searching the buckets
         int size;
         
         public TopList() {
-            head = null;
-            tail = null;
+            highest = null;
+            lowest = null;
+            index = new RankIndex();
             size = 0;
         }
         
-        public void add(int id) {
-            boolean added = false;  //assume the user was in the list
-            //if this is the first user added
-            if(head == null) {
-                head = new ListElement<>(new IdPopPair(id));
-                tail = head;
-                added = true;
+        //replaces the ranking with the given users and popularities (first n elements of the arrays), using a counting sort by popularity
+        public void rebuild(int[] ids, int[] pops, int n) {
+            highest = null;
+            lowest = null;
+            index = new RankIndex();
+            size = 0;
+            int maxPop = 0;
+            for(int i = 0; i < n; i++) {
+                if(pops[i] > maxPop) maxPop = pops[i];
+            }
+            //starts[p] will be the position of the first user with popularity p in the sorted order (most popular first)
+            int[] starts = new int[maxPop + 2];
+            for(int i = 0; i < n; i++) {
+                starts[maxPop - pops[i] + 1]++;
+            }
+            for(int p = 1; p < starts.length; p++) {
+                starts[p] += starts[p - 1];
+            }
+            int[] sorted = new int[n];
+            for(int i = 0; i < n; i++) {
+                sorted[starts[maxPop - pops[i]]] = i;
+                starts[maxPop - pops[i]]++;
+            }
+            //append every user to the bucket of their popularity, creating buckets from the highest popularity down
+            for(int i = 0; i < n; i++) {
+                int pop = pops[sorted[i]];
+                if(pop < 1) continue;
+                if( (lowest == null) || (lowest.pop != pop) ) {
+                    PopBucket bucket = new PopBucket(pop);
+                    bucket.higher = lowest;
+                    if(lowest != null) lowest.lower = bucket;
+                    else highest = bucket;
+                    lowest = bucket;
+                }
+                RankNode node = new RankNode(ids[sorted[i]]);
+                index.put(node.id, node);
+                lowest.append(node);
                 size++;
             }
-            else {
-                //search for this user
-                ListElement<IdPopPair> tmp = head;
-                while( (tmp != null) && (!added) ) {
-                    if(tmp.getValue().getId() == id) {
-                        tmp.getValue().incPop();
-                        added = true;   //user was found and their 'popularity' was incremented
-                    }
-                    else tmp = tmp.getNext();
+        }
+        
+        //increments the popularity of the user in O(1)
+        public void add(int id) {
+            RankNode node = index.get(id);
+            if(node == null) {
+                //user was not in the list, they go to the end of the bucket of users with popularity 1
+                node = new RankNode(id);
+                index.put(id, node);
+                if( (lowest == null) || (lowest.pop != 1) ) {
+                    PopBucket bucket = new PopBucket(1);
+                    bucket.higher = lowest;
+                    if(lowest != null) lowest.lower = bucket;
+                    else highest = bucket;
+                    lowest = bucket;
                 }
-                if(added) {
-                    //keep moving the user up in the list if the popularity of user above is lower
-                    while(  (tmp.getPrev() != null) && (tmp.getValue().getPop() > tmp.getPrev().getValue().getPop()) ) {
-                        ListElement<IdPopPair> prev = tmp.getPrev();
-                        if(prev.getPrev() != null) {
-                            prev.getPrev().setNext(tmp);
-                        }
-                        tmp.setPrev(prev.getPrev());
-                        if(tmp.getNext() != null) {
-                            tmp.getNext().setPrev(prev);
-                        }
-                        prev.setNext(tmp.getNext());
-                        tmp.setNext(prev);
-                        prev.setPrev(tmp);
-                        if(tmp.getPrev() == null) head = tmp;
-                        if(prev.getNext() == null) tail = prev;
-                    }
-                } else {
-                    //if user was not in the list, add to tail and leave there (will have popularity 1 <= least popular)
-                    tail.setNext(new ListElement<>(new IdPopPair(id)));
-                    tail.getNext().setPrev(tail);
-                    tail = tail.getNext();
-                    size++;
+                lowest.append(node);
+                size++;
+                return;
+            }
+            PopBucket from = node.bucket;
+            PopBucket to = from.higher;
+            //create the bucket for the new popularity if there are no other users with it
+            if( (to == null) || (to.pop != from.pop + 1) ) {
+                to = new PopBucket(from.pop + 1);
+                to.lower = from;
+                to.higher = from.higher;
+                if(from.higher != null) from.higher.lower = to;
+                else highest = to;
+                from.higher = to;
+            }
+            from.remove(node);
+            //the user goes behind the users who reached this popularity before them
+            to.append(node);
+            if(from.isEmpty()) unlink(from);
+        }
+        
+        private void unlink(PopBucket bucket) {
+            if(bucket.higher != null) bucket.higher.lower = bucket.lower;
+            else highest = bucket.lower;
+            if(bucket.lower != null) bucket.lower.higher = bucket.higher;
+            else lowest = bucket.higher;
+        }
+        
+        //returns the popularity of the user (0 if they have no followers)
+        public int getPop(int id) {
+            RankNode node = index.get(id);
+            if(node != null) return node.bucket.pop;
+            return 0;
+        }
+        
+        //return the k most popular users in descending order by popularity, only walking the users returned
+        public int[] getTop(int k) {
+            return getTop(0, k);
+        }
+        
+        //return up to k users in descending order by popularity, after the first offset ones
+        public int[] getTop(int offset, int k) {
+            if(offset < 0) offset = 0;
+            if(offset > size) offset = size;
+            if(k > size - offset) k = size - offset;
+            if(k < 0) k = 0;
+            int[] top = new int[k];
+            int count = 0;
+            int skipped = 0;
+            PopBucket bucket = highest;
+            //whole buckets before the offset are skipped without walking their users
+            while( (bucket != null) && (skipped + bucket.size <= offset) ) {
+                skipped += bucket.size;
+                bucket = bucket.lower;
+            }
+            RankNode tmp = (bucket != null) ? bucket.head : null;
+            while( (tmp != null) && (skipped < offset) ) {
+                tmp = tmp.next;
+                skipped++;
+            }
+            while( (bucket != null) && (count < k) ) {
+                while( (tmp != null) && (count < k) ) {
+                    top[count] = tmp.id;
+                    count++;
+                    tmp = tmp.next;
                 }
+                bucket = bucket.lower;
+                if(bucket != null) tmp = bucket.head;
             }
+            return top;
         }
         
         //return all the users with followers sorted in descending order by popularity
         public int[] getAll() {
-            int[] all = new int[size];
-            int count = 0;
-            ListElement<IdPopPair> tmp = head;
-            while(tmp != null) {
-                all[count] = tmp.getValue().getId();
-                System.out.println(all[count]);
-                tmp = tmp.getNext();
-                count++;
+            return getTop(size);
+        }
+        
+    }
+    
+    //counts calls and records latencies of each query, only when enabled (otherwise queries don't even read the clock)
+    //FollowerStore has no lock, so queries can run on several threads at the same time: the counters are atomic and are never replaced (reset() sets them back to 0 in place)
+    class QueryStats {
+        protected volatile boolean enabled;
+        protected final AtomicLongArray counts;     //number of calls of each query
+        protected final AtomicLongArray latencies;  //number of calls of query q which took between 2^i and 2^(i+1) nanoseconds at index (q * LATENCY_BUCKETS) + i
+        
+        public QueryStats() {
+            enabled = false;
+            counts = new AtomicLongArray(QUERIES);
+            latencies = new AtomicLongArray(QUERIES * LATENCY_BUCKETS);
+        }
+        
+        //calls ending while the counters are reset may be counted either before or after it
+        public void reset() {
+            for(int i = 0; i < counts.length(); i++) {
+                counts.set(i, 0);
+            }
+            for(int i = 0; i < latencies.length(); i++) {
+                latencies.set(i, 0);
             }
-            return all;
         }
         
+        //returns the time at which the query started (0 if stats are disabled)
+        public long start() {
+            if(enabled) return System.nanoTime();
+            return 0;
+        }
+        
+        public void end(int query, long start) {
+            if(enabled && (start != 0)) {
+                long took = System.nanoTime() - start;
+                int bucket = 63 - Long.numberOfLeadingZeros(took | 1);  //floor(log2(took))
+                if(bucket >= LATENCY_BUCKETS) bucket = LATENCY_BUCKETS - 1;
+                counts.incrementAndGet(query);
+                latencies.incrementAndGet((query * LATENCY_BUCKETS) + bucket);
+            }
+        }
     }
     
+    //queries tracked by the stats
+    public static final int QUERY_FOLLOWERS = 0;
+    public static final int QUERY_FOLLOWS = 1;
+    public static final int QUERY_IS_A_FOLLOWER = 2;
+    public static final int QUERY_NUM_FOLLOWERS = 3;
+    public static final int QUERY_MUTUAL_FOLLOWERS = 4;
+    public static final int QUERY_MUTUAL_FOLLOWS = 5;
+    public static final int QUERY_TOP_USERS = 6;
+    public static final int QUERY_FOLLOWERS_PAGE = 7;           //getFollowers(uid, offset, limit)
+    public static final int QUERY_FOLLOWERS_OLDER_THAN = 8;
+    public static final int QUERY_FOLLOWS_PAGE = 9;             //getFollows(uid, offset, limit)
+    public static final int QUERY_TOP_USERS_PAGE = 10;          //getTopUsers(offset, limit)
+    public static final int QUERY_COUNT_FOLLOWERS_BEFORE = 11;
+    public static final int QUERY_COUNT_FOLLOWERS_BETWEEN = 12;
+    public static final int QUERY_FOLLOWER_AT = 13;
+    public static final int QUERIES = 14;
+    public static final int LATENCY_BUCKETS = 40;  //the last bucket holds every query that took over 2^39 nanoseconds (~9 minutes)
+    public static final int STRIPES = 1024;         //number of locks shared by the locations of the FollowHashMap in concurrent ingest mode
+    
     FollowHashMap relations;
     TopList top;
+    QueryStats stats;
+    volatile boolean concurrentIngest;  //true between beginConcurrentIngest() and endConcurrentIngest()
     
     public FollowerStore() {
         relations = new FollowHashMap();
         top = new TopList();
+        stats = new QueryStats();
+        concurrentIngest = false;
     }
 
     public boolean addFollower(int uid1, int uid2, Date followDate) {
+        if(concurrentIngest) {
+            //the number of followers of each user is counted by their relations, the ranking is rebuilt from it at the end of the ingest
+            return relations.addConcurrent(uid1, uid2, followDate);
+        }
         if(relations.add(uid1, uid2, followDate)) {
             top.add(uid2);
             return true;
         } 
         return false;
     }  
+    
+    //lets any number of threads call addFollower at the same time, until endConcurrentIngest() is called
+    //queries should not be made before endConcurrentIngest() as relations and the ranking aren't up to date until then
+    public void beginConcurrentIngest() {
+        concurrentIngest = true;
+    }
+    
+    //goes back to single threaded adding and rebuilds the popularity ranking from the number of followers of each user
+    //(users with the same number of followers are ranked in no particular order)
+    public void endConcurrentIngest() {
+        concurrentIngest = false;
+        int n = relations.countFollowed();
+        int[] ids = new int[n];
+        int[] pops = new int[n];
+        relations.getPopularities(ids, pops);
+        top.rebuild(ids, pops, n);
+    }
 
     public int[] getFollowers(int uid) {
-        return relations.getFollowersDate(uid);
+        long start = stats.start();
+        int[] followers = relations.getFollowersDate(uid);
+        stats.end(QUERY_FOLLOWERS, start);
+        return followers;
     }
 
     public int[] getFollows(int uid) {
-        return relations.getFollowingDate(uid);
+        long start = stats.start();
+        int[] follows = relations.getFollowingDate(uid);
+        stats.end(QUERY_FOLLOWS, start);
+        return follows;
     }
 
     public boolean isAFollower(int uidFollower, int uidFollows) {
-        int[] followers = relations.getFollowersId(uidFollows); //returns an empty array if uidFollows has no followers
-        for(int i = 0; i < followers.length; i++)
-            if(followers[i] == uidFollower) return true;
-        return false;
+        long start = stats.start();
+        boolean follower = relations.isFollower(uidFollower, uidFollows);
+        stats.end(QUERY_IS_A_FOLLOWER, start);
+        return follower;
     }
 
     public int getNumFollowers(int uid) {
-        return relations.getNumFollowers(uid);
+        long start = stats.start();
+        int numFollowers = relations.getNumFollowers(uid);
+        stats.end(QUERY_NUM_FOLLOWERS, start);
+        return numFollowers;
     }
 
     public int[] getMutualFollowers(int uid1, int uid2) {
-        return relations.getMutualFollowers(uid1, uid2);
+        long start = stats.start();
+        int[] mutualFollowers = relations.getMutualFollowers(uid1, uid2);
+        stats.end(QUERY_MUTUAL_FOLLOWERS, start);
+        return mutualFollowers;
     }
 
     public int[] getMutualFollows(int uid1, int uid2) {
-        return relations.getMutualFollows(uid1, uid2);
+        long start = stats.start();
+        int[] mutualFollows = relations.getMutualFollows(uid1, uid2);
+        stats.end(QUERY_MUTUAL_FOLLOWS, start);
+        return mutualFollows;
     }
 
     public int[] getTopUsers() {
-        return top.getAll();
+        long start = stats.start();
+        int[] topUsers = top.getAll();
+        stats.end(QUERY_TOP_USERS, start);
+        return topUsers;
+    }
+    
+    //return only the k most followed users, sorted in descending order by number of followers
+    public int[] getTopUsers(int k) {
+        long start = stats.start();
+        int[] topUsers = top.getTop(k);
+        stats.end(QUERY_TOP_USERS, start);
+        return topUsers;
+    }
+    
+    //turns the query counters and latency histograms on or off (off by default)
+    public void setQueryStatsEnabled(boolean enabled) {
+        stats.enabled = enabled;
+    }
+    
+    public void resetQueryStats() {
+        stats.reset();
+    }
+    
+    //returns the number of calls of the query (one of the QUERY_ constants) since stats were enabled
+    public long getQueryCount(int query) {
+        return stats.counts.get(query);
+    }
+    
+    //returns a copy of the latency histogram of the query, where index i counts calls that took between 2^i and 2^(i+1) nanoseconds
+    public long[] getQueryLatencies(int query) {
+        long[] latencies = new long[LATENCY_BUCKETS];
+        for(int i = 0; i < LATENCY_BUCKETS; i++) {
+            latencies[i] = stats.latencies.get((query * LATENCY_BUCKETS) + i);
+        }
+        return latencies;
     }
 
+    
+    //return up to limit followers of the user sorted by date (latest first), after the first offset ones
+    public int[] getFollowers(int uid, int offset, int limit) {
+        long start = stats.start();
+        int[] followers = relations.getFollowersDate(uid, offset, limit);
+        stats.end(QUERY_FOLLOWERS_PAGE, start);
+        return followers;
+    }
+    
+    //return up to limit followers of the user sorted by date, after the follower with the passed follow date and id (the last one of the previous page)
+    public int[] getFollowersOlderThan(int uid, Date followDate, int follower, int limit) {
+        long start = stats.start();
+        int[] followers = relations.getFollowersDateOlderThan(uid, followDate.getTime(), follower, limit);
+        stats.end(QUERY_FOLLOWERS_OLDER_THAN, start);
+        return followers;
+    }
+    
+    //return up to limit users followed by the user sorted by date (latest first), after the first offset ones
+    public int[] getFollows(int uid, int offset, int limit) {
+        long start = stats.start();
+        int[] follows = relations.getFollowingDate(uid, offset, limit);
+        stats.end(QUERY_FOLLOWS_PAGE, start);
+        return follows;
+    }
+    
+    //return up to limit of the most followed users, after the first offset ones
+    public int[] getTopUsers(int offset, int limit) {
+        long start = stats.start();
+        int[] topUsers = top.getTop(offset, limit);
+        stats.end(QUERY_TOP_USERS_PAGE, start);
+        return topUsers;
+    }
+    
+    //return the number of users who followed the user before the date (inclusive)
+    public int countFollowersBefore(int uid, Date followDate) {
+        long start = stats.start();
+        int count = relations.countFollowersBefore(uid, followDate.getTime(), true);
+        stats.end(QUERY_COUNT_FOLLOWERS_BEFORE, start);
+        return count;
+    }
+    
+    //return the number of users who followed the user between the dates (both inclusive)
+    public int countFollowersBetween(int uid, Date from, Date to) {
+        long start = stats.start();
+        int count = relations.countFollowersBefore(uid, to.getTime(), true) - relations.countFollowersBefore(uid, from.getTime(), false);
+        stats.end(QUERY_COUNT_FOLLOWERS_BETWEEN, start);
+        return Math.max(count, 0);
+    }
+    
+    //return the follower at position index of getFollowers() (0 is the latest follower), or -1 if there is no such position
+    public int getFollowerAt(int uid, int index) {
+        long start = stats.start();
+        int follower = relations.getFollowerAt(uid, index);
+        stats.end(QUERY_FOLLOWER_AT, start);
+        return follower;
+    }
+    
+    //returns the position of followed in getFollows(uid) (0 is the latest follow), or -1 if uid doesn't follow them
+    //used by TimelineStore to order weets posted at the same time the way a merge over getFollows() does
+    int getFollowPosition(int uid, int followed) {
+        Relations userRelations = relations.getRelations(uid);
+        if(userRelations == null) return -1;
+        Node follow = userRelations.getFollowingTree().find(followed);
+        if(follow == null) return -1;
+        //the id node has the date and order of the follow, which find its place among the follows on the same date
+        return userRelations.getFollowingDateTree().positionOf(follow.date.getTime(), follow.order);
+    }
+    
+    //returns a compact, read-only copy of the follower graph (followers must not be added while it is made)
+    public FollowerSnapshot snapshot() {
+        int[] ids = relations.getUserIds();
+        Arrays.sort(ids);
+        FollowerSnapshot snapshot = new FollowerSnapshot(ids, top.getAll());
+        int[] rowIds = new int[16];
+        long[] rowDates = new long[16];
+        for(int i = 0; i < ids.length; i++) {
+            Relations userRelations = relations.getRelations(ids[i]);
+            AVLTree followersTree = userRelations.getFollowersTree();
+            AVLTree followingTree = userRelations.getFollowingTree();
+            int most = Math.max(followersTree.size(), followingTree.size());
+            if(most > rowIds.length) {
+                rowIds = new int[most];
+                rowDates = new long[most];
+            }
+            //both trees are sorted by id, so the rows come out sorted
+            int n = fillRow(followersTree, rowIds, rowDates);
+            snapshot.followers.addRow(rowIds, rowDates, n);
+            n = fillRow(followingTree, rowIds, rowDates);
+            snapshot.follows.addRow(rowIds, rowDates, n);
+        }
+        snapshot.finish();
+        return snapshot;
+    }
+    
+    //fills the arrays with the users and dates of the tree in its order, returns their number
+    private int fillRow(AVLTree tree, int[] rowIds, long[] rowDates) {
+        TreeCursor cursor = new TreeCursor(tree);
+        int n = 0;
+        while(cursor.hasNext()) {
+            Node node = cursor.next();
+            rowIds[n] = node.user;
+            rowDates[n] = node.date.getTime();
+            n++;
+        }
+        return n;
+    }
+    
+    //writes the graph to a snapshot section: the ids of every user with relations (in ascending order), then for followers and for follows the offset of each user's row
+    //and the users and dates (in milliseconds) of every row latest first, then the ranking of getTopUsers() (followers must not be added while it is written)
+    void writeSnapshot(StoreSnapshot.Writer out) throws IOException {
+        int[] ids = relations.getUserIds();
+        Arrays.sort(ids);
+        out.writeInt(ids.length);
+        out.writeInts(ids, ids.length);
+        writeRows(out, ids, true);
+        writeRows(out, ids, false);
+        int[] ranking = top.getAll();
+        out.writeInt(ranking.length);
+        out.writeInts(ranking, ranking.length);
+    }
+    
+    //writes the followers (or follows) of every user, in the order of their trees sorted by date
+    private void writeRows(StoreSnapshot.Writer out, int[] ids, boolean followers) throws IOException {
+        int[] offsets = new int[ids.length + 1];
+        for(int i = 0; i < ids.length; i++) {
+            Relations userRelations = relations.getRelations(ids[i]);
+            AVLTree tree = followers ? userRelations.getFollowersDateTree() : userRelations.getFollowingDateTree();
+            offsets[i + 1] = offsets[i] + tree.size();
+        }
+        int edges = offsets[ids.length];
+        int[] users = new int[edges];
+        long[] dates = new long[edges];
+        for(int i = 0; i < ids.length; i++) {
+            Relations userRelations = relations.getRelations(ids[i]);
+            AVLTree tree = followers ? userRelations.getFollowersDateTree() : userRelations.getFollowingDateTree();
+            TreeCursor cursor = new TreeCursor(tree, true);
+            int edge = offsets[i];
+            while(cursor.hasNext()) {
+                Node node = cursor.next();
+                users[edge] = node.user;
+                dates[edge] = node.date.getTime();
+                edge++;
+            }
+        }
+        out.writeInts(offsets, ids.length + 1);
+        out.writeInts(users, edges);
+        out.writeLongs(dates, edges);
+    }
+    
+    //restores the graph of a snapshot section, building all four trees of every user bottom-up (the store must be empty)
+    void readSnapshot(StoreSnapshot.Reader in) throws IOException {
+        if(relations.getUserIds().length > 0) throw new IllegalStateException("Snapshots can only be read into an empty store");
+        int n = in.readInt();
+        if(n < 0) throw new IOException("Snapshot has a negative number of users");
+        int[] ids = in.readInts(n);
+        Relations[] rows = new Relations[n];
+        for(int i = 0; i < n; i++) {
+            rows[i] = relations.addUser(ids[i]);
+            if(rows[i] == null) throw new IOException("Snapshot has the relations of user " + ids[i] + " more than once");
+        }
+        readRows(in, rows, true);
+        readRows(in, rows, false);
+        int count = in.readInt();
+        if(count < 0) throw new IOException("Snapshot has a negative number of top users");
+        int[] ranking = in.readInts(count);
+        int[] pops = new int[count];
+        for(int i = 0; i < count; i++) {
+            Relations userRelations = relations.getRelations(ranking[i]);
+            if(userRelations == null) throw new IOException("Snapshot ranks user " + ranking[i] + " who has no relations");
+            pops[i] = userRelations.getNumFollowers();
+        }
+        //the ranking is already sorted and the rebuild is stable, so users with the same number of followers keep their order
+        top.rebuild(ranking, pops, count);
+    }
+    
+    //reads the followers (or follows) of every user, the rows are sorted by date and are sorted again by id for the trees sorted by id
+    private void readRows(StoreSnapshot.Reader in, Relations[] rows, boolean followers) throws IOException {
+        int[] offsets = in.readInts(rows.length + 1);
+        int edges = offsets[rows.length];
+        if(edges < 0) throw new IOException("Snapshot has a negative number of relations");
+        int[] users = in.readInts(edges);
+        long[] times = in.readLongs(edges);
+        Date[] dates = new Date[edges];
+        for(int i = 0; i < edges; i++) {
+            dates[i] = new Date(times[i]);
+        }
+        int[] usersById = new int[edges];
+        Date[] datesById = new Date[edges];
+        int[] orders = new int[edges];          //the rows are in date tree order, so the position in the row orders relations on the same date
+        int[] ordersById = new int[edges];
+        long[] keys = new long[edges];
+        for(int i = 0; i < rows.length; i++) {
+            int from = offsets[i];
+            int to = offsets[i + 1];
+            if( (from < 0) || (to < from) || (to > edges) ) throw new IOException("Snapshot has an invalid row offset");
+            AVLTree dateTree = followers ? rows[i].getFollowersDateTree() : rows[i].getFollowingDateTree();
+            AVLTree idTree = followers ? rows[i].getFollowersTree() : rows[i].getFollowingTree();
+            //each key holds the user id in its high half and the position in the row in its low half, so sorting the keys sorts the row by id
+            for(int j = from; j < to; j++) {
+                orders[j] = j - from;
+                keys[j] = ((long)users[j] << 32) | (j - from);
+            }
+            dateTree.load(users, dates, orders, from, to);
+            Arrays.sort(keys, from, to);
+            for(int j = from; j < to; j++) {
+                int edge = from + (int)keys[to - 1 - (j - from)];     //highest id first
+                usersById[j] = users[edge];
+                datesById[j] = dates[edge];     //both trees share the date and order of a relation
+                ordersById[j] = orders[edge];
+            }
+            idTree.load(usersById, datesById, ordersById, from, to);
+        }
+    }
+    
+    //iterators and streams walk the trees lazily, so followers must not be added while they are in use
+    
+    //iterates over the followers of the user from the latest one, only keeping a stack of O(log n) nodes
+    public PrimitiveIterator.OfInt iterateFollowers(int uid) {
+        return new IdIterator(relations.followersCursor(uid));
+    }
+    
+    //iterates over the users followed by the user from the latest one
+    public PrimitiveIterator.OfInt iterateFollows(int uid) {
+        return new IdIterator(relations.followingCursor(uid));
+    }
+    
+    //a stream of the followers of the user sorted by date (latest first), which can be split for parallel streams
+    public IntStream streamFollowers(int uid) {
+        return StreamSupport.intStream(new IdSpliterator(relations.followersCursor(uid)), false);
+    }
+    
+    //a stream of the users followed by the user sorted by date (latest first)
+    public IntStream streamFollows(int uid) {
+        return StreamSupport.intStream(new IdSpliterator(relations.followingCursor(uid)), false);
+    }
 }
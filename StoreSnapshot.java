@@ -0,0 +1,296 @@
+/**
+ * Writes the contents of a UserStore, FollowerStore and WeetStore to one versioned binary file, and restores them from it without replaying every addUser(), addFollower() and addWeet()
+ * The file starts with a header (magic number, version and the offset, length and CRC32 checksum of each section), followed by one section per store
+ * Each store writes its own section as columns: arrays of ints and longs, and strings as an array of (long) offsets into a heap of UTF-8 bytes
+ * Columns are written in the order the trees are sorted in (and with the permutations that sort them), so the trees are rebuilt bottom-up on restore instead of node by node
+ * The file is written through a FileChannel and each section is read back through MappedByteBuffers after its checksum is checked, so the data is only copied once into the restored arrays
+ * A buffer can't map more than 2GB, so sections (which can be larger) are mapped in windows of up to 1GB, moved along as the section is read
+ * @author: 1525713
+ */
+
+package uk.ac.warwick.java.cs126.services;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+public class StoreSnapshot {
+
+    public static final int MAGIC = 0x57534E50;    //"WSNP"
+    public static final int VERSION = 2;     //version 1 had int string offsets
+    public static final int SECTION_USERS = 0;
+    public static final int SECTION_FOLLOWERS = 1;
+    public static final int SECTION_WEETS = 2;
+    public static final int SECTIONS = 3;
+    public static final int HEADER_SIZE = 4 + 4 + 4 + (SECTIONS * (8 + 8 + 8));
+    public static final int WINDOW_SIZE = 1 << 30;  //bytes of a section mapped at a time
+
+    //writes columns to a file channel through a direct buffer, keeping the checksum of the current section
+    static class Writer {
+        private FileChannel channel;
+        private ByteBuffer buffer;
+        private CRC32 crc;
+        private long position;      //position in the file of the start of the buffer
+        private long sectionStart;
+        private long[] offsets;
+        private long[] lengths;
+        private long[] checksums;
+
+        Writer(FileChannel channel) {
+            this.channel = channel;
+            buffer = ByteBuffer.allocateDirect(1 << 20);
+            crc = new CRC32();
+            position = HEADER_SIZE;
+            offsets = new long[SECTIONS];
+            lengths = new long[SECTIONS];
+            checksums = new long[SECTIONS];
+        }
+
+        //writes the buffer to the file, adding it to the checksum of the section
+        private void flush() throws IOException {
+            buffer.flip();
+            crc.update(buffer.duplicate());
+            while(buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            buffer.clear();
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if(buffer.remaining() < bytes) flush();
+        }
+
+        public void beginSection() throws IOException {
+            flush();
+            sectionStart = position;
+            crc.reset();
+        }
+
+        public void endSection(int section) throws IOException {
+            flush();
+            offsets[section] = sectionStart;
+            lengths[section] = position - sectionStart;
+            checksums[section] = crc.getValue();
+        }
+
+        public void writeInt(int value) throws IOException {
+            ensure(4);
+            buffer.putInt(value);
+        }
+
+        public void writeLong(long value) throws IOException {
+            ensure(8);
+            buffer.putLong(value);
+        }
+
+        public void writeInts(int[] values, int n) throws IOException {
+            for(int i = 0; i < n; i++) {
+                ensure(4);
+                buffer.putInt(values[i]);
+            }
+        }
+
+        public void writeLongs(long[] values, int n) throws IOException {
+            for(int i = 0; i < n; i++) {
+                ensure(8);
+                buffer.putLong(values[i]);
+            }
+        }
+
+        //writes the strings as n + 1 offsets into a heap of UTF-8 bytes, followed by the heap (which can be larger than 2GB)
+        public void writeStrings(String[] values, int n) throws IOException {
+            byte[][] encoded = new byte[n][];
+            long offset = 0;
+            writeLong(0);
+            for(int i = 0; i < n; i++) {
+                encoded[i] = values[i].getBytes(StandardCharsets.UTF_8);
+                offset += encoded[i].length;
+                writeLong(offset);
+            }
+            for(int i = 0; i < n; i++) {
+                byte[] bytes = encoded[i];
+                int written = 0;
+                while(written < bytes.length) {
+                    if(!buffer.hasRemaining()) flush();
+                    int chunk = Math.min(buffer.remaining(), bytes.length - written);
+                    buffer.put(bytes, written, chunk);
+                    written += chunk;
+                }
+            }
+        }
+
+        //writes the header at the start of the file once every section was written
+        public void finish() throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(SECTIONS);
+            for(int i = 0; i < SECTIONS; i++) {
+                header.putLong(offsets[i]);
+                header.putLong(lengths[i]);
+                header.putLong(checksums[i]);
+            }
+            header.flip();
+            long at = 0;
+            while(header.hasRemaining()) {
+                at += channel.write(header, at);
+            }
+            channel.force(true);
+        }
+    }
+
+    //reads the columns of a section through a window of it mapped into memory, which is moved along when the next value isn't in it
+    static class Reader {
+        private FileChannel channel;
+        private long position;      //position in the file of the next value
+        private long end;           //end of the section in the file
+        private int windowSize;
+        private MappedByteBuffer window;
+        private long windowStart;   //position in the file of the start of the window
+        private byte[] bytes;       //holds the bytes of a string while it is decoded
+
+        Reader(FileChannel channel, long offset, long length, int windowSize) {
+            this.channel = channel;
+            position = offset;
+            end = offset + length;
+            this.windowSize = windowSize;
+            window = null;
+            bytes = new byte[256];
+        }
+
+        //returns the window with its position at the next value, mapping a new window from there if the next bytes aren't all in the current one
+        private ByteBuffer map(long bytes) throws IOException {
+            check(bytes);
+            if( (window == null) || (position + bytes > windowStart + window.limit()) ) {
+                long size = Math.min(Math.max(windowSize, bytes), end - position);
+                window = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+                windowStart = position;
+            }
+            window.position((int)(position - windowStart));
+            return window;
+        }
+
+        public int readInt() throws IOException {
+            int value = map(4).getInt();
+            position += 4;
+            return value;
+        }
+
+        public long readLong() throws IOException {
+            long value = map(8).getLong();
+            position += 8;
+            return value;
+        }
+
+        public int[] readInts(int n) throws IOException {
+            check(n * 4L);
+            int[] values = new int[n];
+            int done = 0;
+            while(done < n) {
+                int chunk = Math.min(n - done, windowSize / 4);
+                map(chunk * 4L).asIntBuffer().get(values, done, chunk);
+                position += chunk * 4L;
+                done += chunk;
+            }
+            return values;
+        }
+
+        public long[] readLongs(int n) throws IOException {
+            check(n * 8L);
+            long[] values = new long[n];
+            int done = 0;
+            while(done < n) {
+                int chunk = Math.min(n - done, windowSize / 8);
+                map(chunk * 8L).asLongBuffer().get(values, done, chunk);
+                position += chunk * 8L;
+                done += chunk;
+            }
+            return values;
+        }
+
+        public String[] readStrings(int n) throws IOException {
+            long[] offsets = readLongs(n + 1);
+            if(offsets[0] != 0) throw new IOException("Snapshot has invalid string offsets");
+            check(offsets[n]);
+            String[] values = new String[n];
+            for(int i = 0; i < n; i++) {
+                long length = offsets[i + 1] - offsets[i];
+                if( (length < 0) || (length > Integer.MAX_VALUE) ) throw new IOException("Snapshot has invalid string offsets");
+                if(length > bytes.length) bytes = new byte[(int)Math.max(length, Math.min(bytes.length * 2L, Integer.MAX_VALUE))];
+                map(length).get(bytes, 0, (int)length);
+                position += length;
+                values[i] = new String(bytes, 0, (int)length, StandardCharsets.UTF_8);
+            }
+            return values;
+        }
+
+        //makes sure the section has the bytes to be read, so a damaged count can't be read past the end of the section
+        private void check(long bytes) throws IOException {
+            if( (bytes < 0) || (bytes > end - position) ) throw new IOException("Snapshot section is shorter than its contents");
+        }
+    }
+
+    //writes the three stores to the file (replacing it), no users, followers or weets should be added while it is written
+    public static void write(File file, UserStore users, FollowerStore followers, WeetStore weets) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Writer out = new Writer(channel);
+            out.beginSection();
+            users.writeSnapshot(out);
+            out.endSection(SECTION_USERS);
+            out.beginSection();
+            followers.writeSnapshot(out);
+            out.endSection(SECTION_FOLLOWERS);
+            out.beginSection();
+            weets.writeSnapshot(out);
+            out.endSection(SECTION_WEETS);
+            out.finish();
+        }
+    }
+
+    //restores the three (empty) stores from the file, after checking its version and the checksum of every section
+    public static void read(File file, UserStore users, FollowerStore followers, WeetStore weets) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            Reader[] sections = open(channel, file);
+            users.readSnapshot(sections[SECTION_USERS]);
+            followers.readSnapshot(sections[SECTION_FOLLOWERS]);
+            weets.readSnapshot(sections[SECTION_WEETS]);
+        }
+    }
+
+    //checks that read() will accept the file (its header, the bounds of every section and their checksums) without restoring anything
+    public static void verify(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            open(channel, file);
+        }
+    }
+
+    //checks the header and the checksum of every section, returns a reader for each section
+    private static Reader[] open(FileChannel channel, File file) throws IOException {
+        long size = channel.size();
+        if(size < HEADER_SIZE) throw new IOException("Not a store snapshot: " + file);
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+        if(header.getInt() != MAGIC) throw new IOException("Not a store snapshot: " + file);
+        int version = header.getInt();
+        if(version != VERSION) throw new IOException("Unsupported snapshot version " + version + " (expected " + VERSION + ")");
+        if(header.getInt() != SECTIONS) throw new IOException("Snapshot has the wrong number of sections");
+        Reader[] sections = new Reader[SECTIONS];
+        for(int i = 0; i < SECTIONS; i++) {
+            long offset = header.getLong();
+            long length = header.getLong();
+            long checksum = header.getLong();
+            if( (offset < HEADER_SIZE) || (length < 0) || (offset + length > size) ) throw new IOException("Snapshot section " + i + " is out of bounds");
+            CRC32 crc = new CRC32();
+            for(long at = 0; at < length; at += WINDOW_SIZE) {
+                crc.update(channel.map(FileChannel.MapMode.READ_ONLY, offset + at, Math.min(WINDOW_SIZE, length - at)));
+            }
+            if(crc.getValue() != checksum) throw new IOException("Snapshot section " + i + " is damaged (checksum mismatch)");
+            sections[i] = new Reader(channel, offset, length, WINDOW_SIZE);
+        }
+        return sections;
+    }
+}
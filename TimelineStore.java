@@ -0,0 +1,493 @@
+/**
+ * Answers "the latest weets from the users a user follows" (home timelines) by combining a FollowerStore and a WeetStore
+ * The users followed come from the FollowerStore, then the WeetStore merges their weet trees through a heap of per-user cursors, so only the requested number of weets is visited and no user's list is built
+ * Newer weets can be polled with a "since" date (the date of the latest weet already seen) and older ones paged with the date and id of the last weet of the previous page
+ *
+ * In fan-out mode, addWeet() also pushes the id of each weet into a bounded ring buffer (kept sorted by date, the weets are looked up in the WeetStore when read) for every follower of its author, so reading a home timeline doesn't have to look at every user followed
+ * Authors with more followers than the fan-out threshold are not pushed (that would mean too many writes per weet), their weets are pulled from the WeetStore when the timeline is read and merged with the buffer
+ * A timeline falls back to pulling everything when the weets asked for may have been dropped from its full buffer
+ * Weets posted at the same time come in the same order in both modes: a user's weets in the order they were added, different users in the order of getFollows()
+ * In fan-out mode weets and follows must be added through this class (not the stores directly), starting from empty stores, so that the buffers stay complete
+ * @author: 1525713
+ */
+
+package uk.ac.warwick.java.cs126.services;
+
+import uk.ac.warwick.java.cs126.models.Weet;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class TimelineStore {
+
+    //the latest weets pushed to one user, and the users they follow whose weets are pulled instead
+    //only the id, author and date of each weet are kept, the weets themselves are looked up in the WeetStore when the timeline is read
+    class Timeline {
+        protected int uid;          //the user the weets are pushed to
+        protected int[] ids;        //ring buffer of the ids of the pushed weets, in the reverse order of the home timeline from start
+        protected int[] authors;    //the author of the weet at the same position of ids
+        protected long[] times;     //the date of the weet at the same position of ids
+        protected int start;        //position of the oldest weet
+        protected int count;
+        protected int capacity;     //the most weets kept, the buffer grows up to this size
+        protected long floor;       //no weet dropped so far is newer than this, and no weet older than it is kept
+        protected int[] pulled;     //users followed who have too many followers to be pushed
+        protected int pulledCount;
+
+        Timeline(int uid, int capacity) {
+            this.uid = uid;
+            ids = new int[Math.min(capacity, 16)];
+            authors = new int[ids.length];
+            times = new long[ids.length];
+            start = 0;
+            count = 0;
+            this.capacity = capacity;
+            floor = Long.MIN_VALUE;
+            pulled = new int[0];
+            pulledCount = 0;
+        }
+
+        //the position in the buffer of the weet at position i from the oldest one
+        private int slot(int i) {
+            return (start + i) % ids.length;
+        }
+
+        private long timeAt(int i) {
+            return times[slot(i)];
+        }
+
+        //copies the weet at position from (from the oldest one) to position to
+        private void move(int from, int to) {
+            int source = slot(from);
+            int target = slot(to);
+            ids[target] = ids[source];
+            authors[target] = authors[source];
+            times[target] = times[source];
+        }
+
+        //adds the weet in its place by date (usually the end, since weets tend to arrive in order), dropping the oldest weet if the buffer is full
+        public void add(int id, int author, long time) {
+            //a weet older than a dropped one isn't kept, so that whatever is missing is older than whatever is kept
+            if(time < floor) return;
+            if(count == capacity) {
+                //a weet older than every kept weet would be dropped straight away
+                if( (capacity == 0) || (time < timeAt(0)) ) {
+                    floor = time;
+                    return;
+                }
+                floor = timeAt(0);
+                start = (start + 1) % ids.length;
+                count--;
+            } else if(count == ids.length) {
+                grow();
+            }
+            //move weets which come before it in the home timeline one place up until the place of the new weet is found
+            int i = count;
+            while( (i > 0) && comesBefore(i - 1, author, time) ) {
+                move(i - 1, i);
+                i--;
+            }
+            int target = slot(i);
+            ids[target] = id;
+            authors[target] = author;
+            times[target] = time;
+            count++;
+        }
+
+        //true if the kept weet at position i comes before the new weet in the home timeline: it is later, or it was posted at the same time by the same user
+        //(whose weets on the same date come in the order they were added, so the new one goes last) or by a user earlier in getFollows()
+        private boolean comesBefore(int i, int author, long time) {
+            long keptTime = timeAt(i);
+            if(keptTime != time) return keptTime > time;
+            int keptAuthor = authors[slot(i)];
+            if(keptAuthor == author) return true;
+            return followers.getFollowPosition(uid, keptAuthor) < followers.getFollowPosition(uid, author);
+        }
+
+        //doubles the buffer (up to the capacity), moving the oldest weet to position 0
+        private void grow() {
+            int length = Math.min(ids.length * 2, capacity);
+            int[] newIds = new int[length];
+            int[] newAuthors = new int[length];
+            long[] newTimes = new long[length];
+            for(int i = 0; i < count; i++) {
+                int source = slot(i);
+                newIds[i] = ids[source];
+                newAuthors[i] = authors[source];
+                newTimes[i] = times[source];
+            }
+            ids = newIds;
+            authors = newAuthors;
+            times = newTimes;
+            start = 0;
+        }
+
+        //drops the weets posted before time, and treats time as the date of a dropped weet
+        public void dropBefore(long time) {
+            if(time > floor) floor = time;
+            while( (count > 0) && (timeAt(0) < time) ) {
+                start = (start + 1) % ids.length;
+                count--;
+            }
+        }
+
+        //removes the weets of the user (once they are pulled instead of pushed)
+        public void remove(int uid) {
+            int kept = 0;
+            for(int i = 0; i < count; i++) {
+                if(authors[slot(i)] != uid) {
+                    move(i, kept);
+                    kept++;
+                }
+            }
+            count = kept;
+        }
+
+        public void addPulled(int uid) {
+            for(int i = 0; i < pulledCount; i++) {
+                if(pulled[i] == uid) return;
+            }
+            if(pulledCount == pulled.length) {
+                int[] tmp = new int[(pulled.length * 2) + 1];
+                for(int i = 0; i < pulledCount; i++) {
+                    tmp[i] = pulled[i];
+                }
+                pulled = tmp;
+            }
+            pulled[pulledCount] = uid;
+            pulledCount++;
+        }
+
+        public int[] getPulled() {
+            int[] ids = new int[pulledCount];
+            for(int i = 0; i < pulledCount; i++) {
+                ids[i] = pulled[i];
+            }
+            return ids;
+        }
+
+        //true if the buffer holds every pushed weet which could be among the latest limit weets posted after since
+        public boolean covers(long since, int limit) {
+            //dropped weets are no later than the floor, so either they are too old or enough later weets are kept
+            //(weets at the floor itself don't count, as a dropped weet posted at the same time may come before them)
+            return (floor <= since) || (newerThan(floor) >= limit);
+        }
+
+        //the number of kept weets posted after since
+        private int newerThan(long since) {
+            int newer = 0;
+            for(int i = count - 1; (i >= 0) && (timeAt(i) > since); i--) {
+                newer++;
+            }
+            return newer;
+        }
+
+        //the latest limit kept weets posted after since, sorted in descending order by date
+        public Weet[] getLatest(long since, int limit) {
+            int n = Math.min(Math.max(limit, 0), newerThan(since));
+            Weet[] latest = new Weet[n];
+            for(int i = 0; i < n; i++) {
+                latest[i] = weets.getWeet(ids[slot(count - 1 - i)]);
+            }
+            return latest;
+        }
+    }
+
+    //open addressing map from user ids to their timelines (same layout as the rank index of FollowerStore)
+    class TimelineIndex {
+        protected int[] keys;
+        protected Timeline[] values;    //a null value marks an empty location
+        protected int size;
+        protected int mask;             //table length - 1 (the length is always a power of 2)
+        protected int threshold;        //number of timelines at which the table is doubled
+
+        public TimelineIndex() {
+            initTable(1024);
+        }
+
+        protected void initTable(int capacity) {
+            keys = new int[capacity];
+            values = new Timeline[capacity];
+            mask = capacity - 1;
+            threshold = capacity * 3 / 4;   //load factor of 0.75
+        }
+
+        //spreads the bits of the id so that consecutive ids don't form long runs of occupied locations
+        private int hash(int key) {
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        public Timeline get(int key) {
+            int location = hash(key) & mask;
+            while(values[location] != null) {
+                if(keys[location] == key) return values[location];
+                location = (location + 1) & mask;
+            }
+            return null;
+        }
+
+        //only called for ids that aren't in the map yet
+        public void put(int key, Timeline timeline) {
+            int location = hash(key) & mask;
+            while(values[location] != null) location = (location + 1) & mask;
+            keys[location] = key;
+            values[location] = timeline;
+            size++;
+            if(size > threshold) resize();
+        }
+
+        //doubles the table and moves every timeline to its new location
+        private void resize() {
+            int[] oldKeys = keys;
+            Timeline[] oldValues = values;
+            initTable(oldKeys.length << 1);
+            for(int i = 0; i < oldKeys.length; i++) {
+                if(oldValues[i] != null) {
+                    int location = hash(oldKeys[i]) & mask;
+                    while(values[location] != null) location = (location + 1) & mask;
+                    keys[location] = oldKeys[i];
+                    values[location] = oldValues[i];
+                }
+            }
+        }
+    }
+
+    public static final int DEFAULT_TIMELINE_LENGTH = 20;
+
+    protected FollowerStore followers;  //finds the users a user follows
+    protected WeetStore weets;          //finds and merges the weets of those users
+    protected boolean fanOut;           //true if weets are pushed to the timelines of their author's followers
+    protected int fanOutThreshold;      //authors with more followers than this are pulled instead of pushed
+    protected int timelineCapacity;     //the most weets pushed to one timeline
+    protected TimelineIndex timelines;
+    protected ReentrantReadWriteLock lock;  //every read shares the read lock, adding weets and follows takes the write lock
+
+    //home timelines are merged from the users followed whenever they are read
+    public TimelineStore(FollowerStore followers, WeetStore weets) {
+        this.followers = followers;
+        this.weets = weets;
+        fanOut = false;
+        fanOutThreshold = 0;
+        timelineCapacity = 0;
+        timelines = new TimelineIndex();
+        lock = new ReentrantReadWriteLock();
+    }
+
+    //weets of authors with up to fanOutThreshold followers are pushed into timelines of up to timelineCapacity weets each
+    public TimelineStore(FollowerStore followers, WeetStore weets, int fanOutThreshold, int timelineCapacity) {
+        this(followers, weets);
+        fanOut = true;
+        this.fanOutThreshold = fanOutThreshold;
+        this.timelineCapacity = Math.max(timelineCapacity, 0);
+    }
+
+    //returns the timeline of the user, creating it if needed
+    protected Timeline timeline(int uid) {
+        Timeline timeline = timelines.get(uid);
+        if(timeline == null) {
+            timeline = new Timeline(uid, timelineCapacity);
+            timelines.put(uid, timeline);
+        }
+        return timeline;
+    }
+
+    //adds the weet to the WeetStore and (in fan-out mode) to the timelines of its author's followers
+    public boolean addWeet(Weet weet) {
+        lock.writeLock().lock();
+        try {
+            if(!weets.addWeet(weet)) return false;
+            int author = weet.getUserId();
+            if( fanOut && (followers.getNumFollowers(author) <= fanOutThreshold) ) {
+                int[] ids = followers.getFollowers(author);
+                long time = weet.getDateWeeted().getTime();
+                for(int i = 0; i < ids.length; i++) {
+                    timeline(ids[i]).add(weet.getId(), author, time);
+                }
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //adds the follow (uid1 follows uid2) to the FollowerStore and (in fan-out mode) brings the timelines up to date
+    public boolean addFollower(int uid1, int uid2, Date followDate) {
+        lock.writeLock().lock();
+        try {
+            if(!followers.addFollower(uid1, uid2, followDate)) return false;
+            if(!fanOut) return true;
+            int numFollowers = followers.getNumFollowers(uid2);
+            if(numFollowers == fanOutThreshold + 1) {
+                //uid2 has just gone over the threshold, their weets are pulled by all their followers from now on
+                int[] ids = followers.getFollowers(uid2);
+                for(int i = 0; i < ids.length; i++) {
+                    Timeline timeline = timeline(ids[i]);
+                    timeline.remove(uid2);
+                    timeline.addPulled(uid2);
+                }
+            } else if(numFollowers > fanOutThreshold) {
+                timeline(uid1).addPulled(uid2);
+            } else {
+                //the weets uid2 posted before the follow are pushed now
+                Timeline timeline = timeline(uid1);
+                //one more weet than can be kept is asked for, to know whether older weets are left out
+                Weet[] latest = weets.getWeetsByUsers(new int[] {uid2}, timelineCapacity + 1);
+                int kept = Math.min(latest.length, timelineCapacity);
+                //the oldest date is added first, and weets on the same date in their order (add() puts a user's weet after their weets on the same date)
+                int end = kept;
+                while(end > 0) {
+                    int first = end - 1;
+                    long time = latest[first].getDateWeeted().getTime();
+                    while( (first > 0) && (latest[first - 1].getDateWeeted().getTime() == time) ) first--;
+                    for(int i = first; i < end; i++) {
+                        timeline.add(latest[i].getId(), uid2, time);
+                    }
+                    end = first;
+                }
+                //the weets left out count as dropped
+                if(latest.length > kept) timeline.dropBefore(latest[kept].getDateWeeted().getTime());
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //return the latest weets of the users followed by the user, sorted in descending order by date
+    public Weet[] getHomeTimeline(int uid) {
+        return getHomeTimeline(uid, DEFAULT_TIMELINE_LENGTH);
+    }
+
+    //return the latest limit weets of the users followed by the user, sorted in descending order by date
+    public Weet[] getHomeTimeline(int uid, int limit) {
+        lock.readLock().lock();
+        try {
+            if(fanOut) {
+                Weet[] pushed = getPushed(uid, Long.MIN_VALUE, limit);
+                if(pushed != null) return pushed;
+            }
+            return weets.getWeetsByUsers(followers.getFollows(uid), limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //return the latest limit weets of the users followed by the user posted after since (exclusive), to poll for weets newer than the ones already seen
+    public Weet[] getHomeTimelineSince(int uid, Date since, int limit) {
+        lock.readLock().lock();
+        try {
+            if(fanOut) {
+                Weet[] pushed = getPushed(uid, since.getTime(), limit);
+                if(pushed != null) return pushed;
+            }
+            return weets.getWeetsByUsersSince(followers.getFollows(uid), since, limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //merges the latest pushed weets of the user with the latest weets of the users they pull, or returns null if weets which were dropped may be needed
+    //(the read lock is reentrant, so the public reads which call it hold it the whole time)
+    protected Weet[] getPushed(int uid, long since, int limit) {
+        lock.readLock().lock();
+        try {
+            Timeline timeline = timelines.get(uid);
+            if(timeline == null) return new Weet[0];   //nothing was pushed and nobody is pulled
+            if(!timeline.covers(since, limit)) return null;
+            Weet[] pushed = timeline.getLatest(since, limit);
+            if(timeline.pulledCount == 0) return pushed;
+            //the users pulled are merged in the order of getFollows(), so weets posted at the same time come in the same order as in pull mode
+            int[] pulledIds = timeline.getPulled();
+            int[] positions = new int[pulledIds.length];
+            for(int i = 0; i < pulledIds.length; i++) {
+                positions[i] = followers.getFollowPosition(uid, pulledIds[i]);
+            }
+            sortByPosition(pulledIds, positions);
+            Weet[] pulled;
+            if(since == Long.MIN_VALUE) pulled = weets.getWeetsByUsers(pulledIds, limit);
+            else pulled = weets.getWeetsByUsersSince(pulledIds, new Date(since), limit);
+            return merge(uid, pushed, pulled, limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //insertion sort of the (few) users pulled by their position in getFollows()
+    private void sortByPosition(int[] ids, int[] positions) {
+        for(int i = 1; i < ids.length; i++) {
+            int id = ids[i];
+            int position = positions[i];
+            int j = i;
+            while( (j > 0) && (positions[j - 1] > position) ) {
+                ids[j] = ids[j - 1];
+                positions[j] = positions[j - 1];
+                j--;
+            }
+            ids[j] = id;
+            positions[j] = position;
+        }
+    }
+
+    //merges two arrays sorted in home timeline order of the user, keeping up to limit weets
+    //weets posted at the same time come in the order of their users in getFollows(), like in FanInCursor
+    protected Weet[] merge(int uid, Weet[] a, Weet[] b, int limit) {
+        Weet[] merged = new Weet[Math.min(a.length + b.length, Math.max(limit, 0))];
+        int i = 0;
+        int j = 0;
+        for(int k = 0; k < merged.length; k++) {
+            if( (j == b.length) || ( (i < a.length) && comesFirst(uid, a[i], b[j]) ) ) {
+                merged[k] = a[i];
+                i++;
+            } else {
+                merged[k] = b[j];
+                j++;
+            }
+        }
+        return merged;
+    }
+
+    //true if weet a comes before weet b in the home timeline of the user
+    private boolean comesFirst(int uid, Weet a, Weet b) {
+        long timeA = a.getDateWeeted().getTime();
+        long timeB = b.getDateWeeted().getTime();
+        if(timeA != timeB) return timeA > timeB;
+        if(a.getUserId() == b.getUserId()) return true;
+        return followers.getFollowPosition(uid, a.getUserId()) < followers.getFollowPosition(uid, b.getUserId());
+    }
+
+    //return up to limit weets of the home timeline which come after the weet with the passed date and id (the last weet of the previous page)
+    //older pages are always merged from the users followed, as they are usually past what the timelines keep
+    public Weet[] getHomeTimelineOlderThan(int uid, Date date, int id, int limit) {
+        lock.readLock().lock();
+        try {
+            return weets.getWeetsByUsersOlderThan(followers.getFollows(uid), date, id, limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //iterates over the home timeline from the latest weet, only looking at the next weet of each user followed (weets must not be added while iterating)
+    //the read lock is only held while the follows are read and the iterator is made, as the iterator is used after this returns
+    public Iterator<Weet> iterateHomeTimeline(int uid) {
+        lock.readLock().lock();
+        try {
+            return weets.iterateWeetsByUsers(followers.getFollows(uid));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //return the number of weets currently pushed to the user's timeline
+    public int getPushedCount(int uid) {
+        lock.readLock().lock();
+        try {
+            Timeline timeline = timelines.get(uid);
+            if(timeline == null) return 0;
+            return timeline.count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
@@ -1,6 +1,14 @@
     /**
     * A Hash Map is used for fast access and insertion of users by ID (used by getUser())
+    * The Hash Map uses open addressing (linear probing) over parallel arrays of ids and users and doubles itself when 3/4 full
     * An AVL Tree is used for fast insertion and sorting of users by the date they joined on (used by getUsers(), getUsersContaining() and getUsersJoinedBefore())
+    * An inverted index from every trigram of the (lower case) user names to the users whose name contains it answers getUsersContaining() by intersecting the lists of the query's trigrams
+    * Paged versions of getUsers() and getUsersJoinedBefore() walk the AVL Tree with a stack and stop after the requested number of users
+    * Date ranges (getUsersJoinedBefore() and getUsersJoinedBetween()) are counted in O(log n), then a cursor seeks to the latest user in range and stops after the last one
+    * The same stack based cursors are available as iterators and as spliterators for (parallel) streams
+    * Every node of the AVL Tree knows the size of its subtree, so counts, positions and page offsets are found in O(log n)
+    * addUsers() sorts a batch of users in parallel and rebuilds the AVL Tree bottom-up instead of inserting users one by one
+    * StoreSnapshot saves the users in the order they were added and restores them through addUsers()
     * 
     * HasMap class and all classes used by it designed with the help of Shalin Doshi during CS126 labs
     * AVL Tree class based on code found at : http://coding-for-fun-in-java.blogspot.co.uk/2012/04/self-balancing-tree-in-java.html
@@ -11,30 +19,18 @@
 
 package uk.ac.warwick.java.cs126.services;
 import uk.ac.warwick.java.cs126.models.User;
+import java.io.IOException;
 import java.util.Date;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class UserStore implements IUserStore {
     
-    //class based on KeyValuePair used in cs126 labs
-    class KeyUserPair {
-
-        protected int key;
-        protected User user;
-        
-        public KeyUserPair(int k, User u) {
-            key = k;
-            user = u;
-        }
-        
-        public int getKey() {
-            return key;
-        }
-        
-        public User getUser() {
-            return user;
-        }
-    }
-    
     //class used in cs126 lab (hash maps)
     class ListElement<E> {
         private final E value;
@@ -66,115 +62,248 @@ public class UserStore implements IUserStore {
         }
     }
     
-    //based on the KeyValuePairLinkedList class from the CS126 labs for easy use of Usec class specific methods
-    class KeyUserPairLinkedList {
+    //open addressing hash map (linear probing) storing ids and users in parallel arrays, so no pair/list objects are created per user
+    class HashMap {
 
-        protected ListElement<KeyUserPair> head;
-        protected int size;
+        protected int[] keys;       //the user ids
+        protected User[] values;    //the users (a null value marks an empty location)
+        protected int size;         //number of users stored
+        protected int mask;         //table length - 1 (the length is always a power of 2)
+        protected int threshold;    //number of users at which the table is doubled
         
-        public KeyUserPairLinkedList() {
-            head = null;
-            size = 0;
+        public HashMap() {
+            this(16);
         }
         
-        public void add(int key, User user) {
-            this.add(new KeyUserPair(key,user));
+        public HashMap(int s) {
+            int capacity = 16;
+            //smallest power of 2 able to hold s users without going over the load factor
+            while(capacity * 3 / 4 < s) capacity <<= 1;
+            initTable(capacity);
         }
-
-        public boolean add(KeyUserPair kup) {
-            ListElement<KeyUserPair> new_element = new ListElement<>(kup);
-            ListElement<KeyUserPair> tmp = head;
-            //add this user to an existing list in this bucket or create a new list of users if this is the one in the bucket
-            while(tmp != null) {
-                if(tmp.getValue().getKey() > new_element.getValue().getKey()) {
-                    new_element.setNext(tmp);
-                    if(tmp.getPrev() == null) {
-                        head = new_element;
-                        tmp.setPrev(new_element);
-                        return true;
-                    }
-                    tmp.getPrev().setNext(new_element);
-                    new_element.setPrev(tmp.getPrev());
-                    tmp.setPrev(new_element);
-                    return true;
-                }
-                if(tmp.getNext() == null) {
-                    tmp.setNext(new_element);
-                    return true;
-                }
-                tmp = tmp.getNext();
-            }
-            head = new_element; 
-            return false;
+        
+        protected void initTable(int capacity) {
+            keys = new int[capacity];
+            values = new User[capacity];
+            mask = capacity - 1;
+            threshold = capacity * 3 / 4;   //load factor of 0.75
+        }
+        
+        //spreads the bits of the id so that consecutive ids don't form long runs of occupied locations
+        private int hash(int key) {
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
         }
         
         public int size() {
             return size;
         }
+
+        public boolean add(int key, User user) {
+            int location = hash(key) & mask;
+            //probe until an empty location or the same id is found
+            while(values[location] != null) {
+                if(keys[location] == key) return false;
+                location = (location + 1) & mask;
+            }
+            keys[location] = key;
+            values[location] = user;
+            size++;
+            if(size > threshold) resize();
+            return true;
+        }
+
+        public User get(int key) {
+            int location = hash(key) & mask;
+            while(values[location] != null) {
+                if(keys[location] == key) return values[location];
+                location = (location + 1) & mask;
+            }
+            return null;
+        }
         
-        public ListElement<KeyUserPair> getHead() {
-            return head;
+        //grows the table so that it can hold n users without resizing again
+        public void ensureCapacity(int n) {
+            while(threshold < n) resize();
         }
         
-        public KeyUserPair get(int key) {
-            ListElement<KeyUserPair> tmp = head;
-            while(tmp != null) {
-                if(tmp.getValue().getUser().getId() == key) {
-                    return tmp.getValue();
+        //doubles the table and moves every user to its new location
+        private void resize() {
+            int[] oldKeys = keys;
+            User[] oldValues = values;
+            initTable(oldKeys.length << 1);
+            for(int i = 0; i < oldKeys.length; i++) {
+                if(oldValues[i] != null) {
+                    int location = hash(oldKeys[i]) & mask;
+                    while(values[location] != null) location = (location + 1) & mask;
+                    keys[location] = oldKeys[i];
+                    values[location] = oldValues[i];
                 }
-                tmp = tmp.getNext();
             }
-            
-            return null;
         }
     }
-
-    //class based on HashMap class developed in labs
-    class HashMap {
-
-        protected KeyUserPairLinkedList[] table;
+    
+    //the numbers (in the order they were added) of the users whose name contains a trigram, so it is sorted in ascending order
+    class PostingList {
+        protected int[] seqs;
+        protected int size;
         
-        public HashMap() {
-            this(16001);
+        PostingList() {
+            seqs = new int[4];
+            size = 0;
         }
         
-        public HashMap(int s) {
-            table = new KeyUserPairLinkedList[s];
-            initTable();
+        public void add(int seq) {
+            //a trigram may appear more than once in the same name
+            if( (size > 0) && (seqs[size - 1] == seq) ) return;
+            if(size == seqs.length) {
+                int[] tmp = new int[seqs.length * 2];
+                for(int i = 0; i < size; i++) {
+                    tmp[i] = seqs[i];
+                }
+                seqs = tmp;
+            }
+            seqs[size] = seq;
+            size++;
         }
         
-        protected void initTable() {
-            for(int i = 0; i < table.length; i++) {
-                table[i] = new KeyUserPairLinkedList();
+        //checks if the number is in the list between from and size, returning its position (or the position it would be at, minus 1, negated)
+        public int search(int seq, int from) {
+            int lo = from;
+            int hi = size - 1;
+            while(lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if(seqs[mid] < seq) lo = mid + 1;
+                else if(seqs[mid] > seq) hi = mid - 1;
+                else return mid;
             }
+            return -(lo + 1);
         }
-
-        public boolean add(int key, User user) {
-            int location = key % table.length;
-            if(table[location].get(key) == null) {
-                table[location].add(key,user);
-                return true;
-            }
-            return false;
+    }
+    
+    //inverted index from every trigram (3 consecutive characters) of the lower case user names to the list of users whose name contains it
+    //implemented as an open addressing hash map (linear probing) with the 3 characters packed into a long key
+    class TrigramIndex {
+        protected long[] keys;
+        protected PostingList[] values; //a null value marks an empty location
+        protected int size;
+        protected int mask;             //table length - 1 (the length is always a power of 2)
+        protected int threshold;        //number of trigrams at which the table is doubled
+        
+        public TrigramIndex() {
+            initTable(1024);
         }
-
-        public User get(int key) {
-            int location = key % table.length;
-            KeyUserPair pair = table[location].get(key);
-            if(pair != null) return pair.getUser();
+        
+        protected void initTable(int capacity) {
+            keys = new long[capacity];
+            values = new PostingList[capacity];
+            mask = capacity - 1;
+            threshold = capacity * 3 / 4;   //load factor of 0.75
+        }
+        
+        //packs the 3 characters starting at i into one key
+        public long key(String text, int i) {
+            return ((long)text.charAt(i) << 32) | ((long)text.charAt(i + 1) << 16) | (long)text.charAt(i + 2);
+        }
+        
+        private int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int)(h ^ (h >>> 32));
+        }
+        
+        public PostingList get(long key) {
+            int location = hash(key) & mask;
+            while(values[location] != null) {
+                if(keys[location] == key) return values[location];
+                location = (location + 1) & mask;
+            }
             return null;
         }
+        
+        //adds the user with number seq to the lists of all the trigrams in the (lower case) name
+        public void add(String name, int seq) {
+            for(int i = 0; i + 2 < name.length(); i++) {
+                long key = key(name, i);
+                int location = hash(key) & mask;
+                while( (values[location] != null) && (keys[location] != key) ) {
+                    location = (location + 1) & mask;
+                }
+                if(values[location] == null) {
+                    keys[location] = key;
+                    values[location] = new PostingList();
+                    size++;
+                }
+                values[location].add(seq);
+                if(size > threshold) resize();
+            }
+        }
+        
+        //returns the numbers of the users whose name contains every trigram of the (lower case) query, by intersecting their lists
+        //(the query must be at least 3 characters long)
+        public int[] getCandidates(String query) {
+            int n = query.length() - 2;
+            PostingList[] lists = new PostingList[n];
+            PostingList smallest = null;
+            for(int i = 0; i < n; i++) {
+                lists[i] = get(key(query, i));
+                if(lists[i] == null) return new int[0];  //no name contains this trigram
+                if( (smallest == null) || (lists[i].size < smallest.size) ) smallest = lists[i];
+            }
+            //start with the smallest list and keep the numbers found in all the other lists
+            int[] candidates = new int[smallest.size];
+            int count = 0;
+            for(int i = 0; i < smallest.size; i++) {
+                candidates[count] = smallest.seqs[i];
+                count++;
+            }
+            for(int l = 0; (l < n) && (count > 0); l++) {
+                if(lists[l] == smallest) continue;
+                int kept = 0;
+                int from = 0;   //both lists are sorted, so searching can continue from where the last number was
+                for(int i = 0; i < count; i++) {
+                    int found = lists[l].search(candidates[i], from);
+                    if(found >= 0) {
+                        candidates[kept] = candidates[i];
+                        kept++;
+                        from = found + 1;
+                    } else from = -(found + 1);
+                }
+                count = kept;
+            }
+            int[] result = new int[count];
+            for(int i = 0; i < count; i++) {
+                result[i] = candidates[i];
+            }
+            return result;
+        }
+        
+        //doubles the table and moves every list to its new location
+        private void resize() {
+            long[] oldKeys = keys;
+            PostingList[] oldValues = values;
+            initTable(oldKeys.length << 1);
+            for(int i = 0; i < oldKeys.length; i++) {
+                if(oldValues[i] != null) {
+                    int location = hash(oldKeys[i]) & mask;
+                    while(values[location] != null) location = (location + 1) & mask;
+                    keys[location] = oldKeys[i];
+                    values[location] = oldValues[i];
+                }
+            }
+        }
     }
     
     class Node {
         protected User user;
         protected int height;
+        protected int size;     //the number of nodes in the subtree starting at this node
         protected Node left;
         protected Node right;
     
         Node(User user) {
             this.user = user;
             height = 0;
+            size = 1;
             left = null;
             right = null;
         }
@@ -199,6 +328,43 @@ public class UserStore implements IUserStore {
             size++;
         }
         
+        //the number of nodes in the subtree (0 for an empty one)
+        private int size(Node tree) {
+            if(tree == null) return 0;
+            return tree.size;
+        }
+        
+        //counts the users who joined before time (or on it, if inclusive) in O(log n) using the subtree sizes
+        public int countBefore(long time, boolean inclusive) {
+            int count = 0;
+            Node tree = root;
+            while(tree != null) {
+                long joined = tree.user.getDateJoined().getTime();
+                if( (joined < time) || (inclusive && (joined == time)) ) {
+                    //this user and every user to its left count
+                    count += size(tree.left) + 1;
+                    tree = tree.right;
+                } else tree = tree.left;
+            }
+            return count;
+        }
+        
+        //returns the user at position index of getInOrder() (most recently joined first) in O(log n), or null if there is no such position
+        public User select(int index) {
+            if( (index < 0) || (index >= size(root)) ) return null;
+            Node tree = root;
+            while(tree != null) {
+                int later = size(tree.right);   //number of users that come before this one
+                if(index < later) tree = tree.right;
+                else if(index == later) return tree.user;
+                else {
+                    index -= later + 1;
+                    tree = tree.left;
+                }
+            }
+            return null;
+        }
+        
         private Node rotateRight(Node x) {
             //the height of a tree is the number of nodes in the longest chain of nodes in that tree
             int lh; //the height of the left tree
@@ -226,6 +392,10 @@ public class UserStore implements IUserStore {
             
             if(lh >= rh) newRoot.height = lh + 1;
             else newRoot.height = rh + 1;
+            
+            //x is now below newRoot, so its size is updated first
+            x.size = size(x.left) + size(x.right) + 1;
+            newRoot.size = size(newRoot.left) + size(newRoot.right) + 1;
         
             // newRoot is the head of new tree to be returned
             return newRoot;
@@ -258,6 +428,10 @@ public class UserStore implements IUserStore {
             
             if(lh >= rh) newRoot.height = lh + 1;
             else newRoot.height = rh + 1;
+            
+            //x is now below newRoot, so its size is updated first
+            x.size = size(x.left) + size(x.right) + 1;
+            newRoot.size = size(newRoot.left) + size(newRoot.right) + 1;
         
             // newRoot is the head of new tree to be returned
             return newRoot;
@@ -266,6 +440,58 @@ public class UserStore implements IUserStore {
         public void insert(User user) {
             root = insert(root, user);
         }
+        
+        //adds users that are sorted in descending order by date (with users on the same date in the order they were added) to the tree,
+        //by merging them with the users already in the tree and building a balanced tree bottom-up in O(n)
+        public void insertSorted(User[] sorted, int n) {
+            User[] current = getInOrder();
+            User[] all = new User[current.length + n];
+            int i = 0;
+            int j = 0;
+            int k = 0;
+            while( (i < current.length) && (j < n) ) {
+                //on the same date, users already in the tree were added first
+                if(current[i].getDateJoined().getTime() >= sorted[j].getDateJoined().getTime()) {
+                    all[k] = current[i];
+                    i++;
+                } else {
+                    all[k] = sorted[j];
+                    j++;
+                }
+                k++;
+            }
+            while(i < current.length) {
+                all[k] = current[i];
+                i++;
+                k++;
+            }
+            while(j < n) {
+                all[k] = sorted[j];
+                j++;
+                k++;
+            }
+            root = build(all, 0, all.length - 1);
+            size = all.length;
+        }
+        //builds a balanced tree from the users between lo and hi (inclusive) of an array sorted in descending order by date
+        private Node build(User[] all, int lo, int hi) {
+            if(lo > hi) return null;
+            int mid = (lo + hi) >>> 1;
+            Node tree = new Node(all[mid]);
+            tree.right = build(all, lo, mid - 1);   //later users go to the right
+            tree.left = build(all, mid + 1, hi);    //earlier users go to the left
+            tree.size = hi - lo + 1;
+            //set the height the same way insert does (a leaf has height 0)
+            if( (tree.left != null) || (tree.right != null) ) {
+                int lh = 0;
+                int rh = 0;
+                if (tree.left != null) lh = tree.left.height;
+                if (tree.right != null) rh = tree.right.height;
+                if(lh >= rh) tree.height = lh + 1;
+                else tree.height = rh + 1;
+            }
+            return tree;
+        }
         public Node insert(Node tree, User user) {
             
             //the height of a tree is the number of nodes in the longest chain of nodes in that tree
@@ -283,6 +509,7 @@ public class UserStore implements IUserStore {
             else if(user.getDateJoined().getTime() <= tree.user.getDateJoined().getTime()) {
                 tree.left = insert(tree.left, user);
             }            
+            tree.size++;
             
             //set the height of the new (modified) tree       
             if (tree.left != null) lh = tree.left.height;
@@ -365,61 +592,360 @@ public class UserStore implements IUserStore {
             }
         }
         
+        //returns the users who joined between from and to (both inclusive), sorted so the most recently joined user is first
+        //the count of users in the range is found in O(log n) from the subtree sizes, then a cursor seeks to the latest one and stops after them
+        public User[] getBetween(long from, long to) {
+            int between = countBefore(to, true) - countBefore(from, false);
+            if(between <= 0) return new User[0];
+            UserCursor cursor = new UserCursor(this, to);
+            return cursor.take(between);
+        }
+        
         //returns an array of all users that joined before the date (inclusive - according to updates on the module web page)
         public User[] getBefore(Date dateBefore) {
-            usersList = new ListElement<>(null);    //the list that will store users as the tree is being processed
-            count = 0;  //counts the found users in order to declare the array with appropriate size
-            getBefore(root, dateBefore);    //get the users by starting at the root of the main tree
-            User[] containing = new User[count];    
-            //move the users from the list into the array
-            for(int i = 0; (i < count) && (usersList != null); i ++) {
-                containing[i] = usersList.getValue();
-                usersList = usersList.getNext();
-            }
-            usersList = null;
-            return containing;
-        }
-        private void getBefore(Node tree, Date dateBefore) {
-            if(tree != null) {
-                getBefore(tree.left, dateBefore);   //get the users in the subtree to the left of this node
-                //whether this date is before, after or equal to dateBefore, elements to the left only get earlier and should be checked
-                //this date is from before dateBefore, but later dates (to the right) might be too
-                if( tree.user.getDateJoined().before(dateBefore) ) {
-                    //add this date to the list
-                    ListElement<User> tmp = new ListElement<>(tree.user);
-                    tmp.setNext(usersList);
-                    usersList.setPrev(tmp);
-                    usersList = tmp;
-                    count++;
-                    getBefore(tree.right, dateBefore);  //get users in the subtree to the right of this node
-                } else if( tree.user.getDateJoined().equals(dateBefore)) {
-                    //there is no point in checking later dates but this date is still valid
-                    ListElement<User> tmp = new ListElement<>(tree.user);
-                    tmp.setNext(usersList);
-                    usersList.setPrev(tmp);
-                    usersList = tmp;
-                    count++;
+            return getBetween(Long.MIN_VALUE, dateBefore.getTime());
+        }
+    }
+    
+    //walks the tree in descending order by date using a stack of the nodes still to be visited, so users are only reached when asked for
+    class UserCursor implements Iterator<User> {
+        private Node[] stack;
+        private int top;
+        
+        //a cursor over the nodes of stack (the top of the stack is visited first), only used by split()
+        private UserCursor(Node[] stack, int top) {
+            this.stack = stack;
+            this.top = top;
+        }
+        
+        //starts at the most recently joined user
+        UserCursor(AVLTree tree) {
+            init(tree);
+            pushRight(tree.root);
+        }
+        
+        //starts at the most recently joined user who joined on or before time, found in O(log n)
+        UserCursor(AVLTree tree, long time) {
+            init(tree);
+            Node node = tree.root;
+            while(node != null) {
+                if(node.user.getDateJoined().getTime() <= time) {
+                    //this user is valid and later ones to the right might be too, earlier ones to the left are visited after it
+                    stack[top] = node;
+                    top++;
+                    node = node.right;
+                } else node = node.left;
+            }
+        }
+        
+        //starts at the user at position index of getInOrder() (most recently joined first), found in O(log n) using the subtree sizes
+        UserCursor(AVLTree tree, int index) {
+            init(tree);
+            Node node = tree.root;
+            while(node != null) {
+                int later = (node.right != null) ? node.right.size : 0;
+                if(index <= later) {
+                    //this user comes after the starting one, with the users to its left
+                    stack[top] = node;
+                    top++;
+                    if(index == later) break;
+                    node = node.right;
+                } else {
+                    index -= later + 1;
+                    node = node.left;
+                }
+            }
+        }
+        
+        private void init(AVLTree tree) {
+            stack = new Node[(tree.root != null ? tree.root.height : 0) + 2];
+            top = 0;
+        }
+        
+        //the number of users still to be visited: each node on the stack and the users to its left
+        public long remaining() {
+            long remaining = 0;
+            for(int i = 0; i < top; i++) {
+                remaining += 1 + ((stack[i].left != null) ? stack[i].left.size : 0);
+            }
+            return remaining;
+        }
+        
+        //pushes the node and the chain of nodes to its right (the latest ones are visited first)
+        private void pushRight(Node node) {
+            while(node != null) {
+                stack[top] = node;
+                top++;
+                node = node.right;
+            }
+        }
+        
+        public boolean hasNext() {
+            return top > 0;
+        }
+        
+        //returns the next user without moving past it
+        public User peek() {
+            return stack[top - 1].user;
+        }
+        
+        public User next() {
+            top--;
+            Node next = stack[top];
+            pushRight(next.left);
+            return next.user;
+        }
+        
+        //splits the users still to be visited: the returned cursor visits the first part and this one the rest (null if they can't be split)
+        //each node on the stack stands for itself and the subtree to its left, so the bottom node stays here and the others are given away
+        public UserCursor split() {
+            if(top == 0) return null;
+            Node single = null;    //a node which has to be visited before the rest when the only node on the stack is split up
+            if(top == 1) {
+                top = 0;
+                single = stack[0];
+                pushRight(single.left);
+                if(top == 0) {
+                    //there is nothing left of it to split
+                    stack[0] = single;
+                    top = 1;
+                    return null;
                 }
             }
+            Node[] first = new Node[stack.length + 1];
+            int firstTop = 0;
+            for(int i = 1; i < top; i++) {
+                first[firstTop] = stack[i];
+                firstTop++;
+            }
+            if(single != null) {
+                //a copy without children so only this user is visited
+                first[firstTop] = new Node(single.user);
+                firstTop++;
+            }
+            top = 1;
+            return new UserCursor(first, firstTop);
+        }
+        
+        //moves past the users which joined at time up to (and including) the one with the passed id (if there is no such user, past all of them)
+        public void skipPast(long time, int id) {
+            while( hasNext() && (peek().getDateJoined().getTime() == time) ) {
+                if(next().getId() == id) return;
+            }
+        }
+        
+        //moves past n users
+        public void skip(int n) {
+            for(int i = 0; (i < n) && hasNext(); i++) {
+                next();
+            }
+        }
+        
+        //returns up to limit of the next users
+        public User[] take(int limit) {
+            if(limit < 0) limit = 0;
+            User[] page = new User[limit];
+            int count = 0;
+            while( (count < limit) && hasNext() ) {
+                page[count] = next();
+                count++;
+            }
+            if(count == limit) return page;
+            User[] shorter = new User[count];
+            for(int i = 0; i < count; i++) {
+                shorter[i] = page[i];
+            }
+            return shorter;
+        }
+    }
+    
+    //lets a UserCursor be used by (parallel) streams
+    class UserSpliterator implements Spliterator<User> {
+        private UserCursor cursor;
+        
+        UserSpliterator(UserCursor cursor) {
+            this.cursor = cursor;
+        }
+        
+        public boolean tryAdvance(Consumer<? super User> action) {
+            if(!cursor.hasNext()) return false;
+            action.accept(cursor.next());
+            return true;
+        }
+        
+        public Spliterator<User> trySplit() {
+            UserCursor first = cursor.split();
+            if(first == null) return null;
+            return new UserSpliterator(first);
+        }
+        
+        public long estimateSize() {
+            return cursor.remaining();
+        }
+        
+        public int characteristics() {
+            return ORDERED | NONNULL | SIZED | SUBSIZED;
         }
     }
     
     protected HashMap users;
     protected AVLTree orderedUsers;
+    protected User[] added;             //all users in the order they were added (a user's position is its number in the trigram index)
+    protected int addedCount;
+    protected TrigramIndex trigrams;    //finds the users whose name may contain a query without looking at every user
        
     public UserStore() {
-        this.users = new HashMap(16001); //the hashmap with 16k locations will be able to store users from year 2000 to 2051
+        this.users = new HashMap(16001); //the hashmap grows by itself, 16k users are enough to start with
         this.orderedUsers = new AVLTree();
+        this.added = new User[1024];
+        this.addedCount = 0;
+        this.trigrams = new TrigramIndex();
+    }
+    
+    //gives the user the next number and adds it to the lists of the trigrams in their name
+    protected void addToIndex(User usr) {
+        if(addedCount == added.length) {
+            User[] tmp = new User[added.length * 2];
+            for(int i = 0; i < addedCount; i++) {
+                tmp[i] = added[i];
+            }
+            added = tmp;
+        }
+        added[addedCount] = usr;
+        trigrams.add(usr.getName().toLowerCase(), addedCount);
+        addedCount++;
+    }
+    
+    //finds the users whose name contains the query through the trigram index: the candidates are checked and sorted in descending order by date joined
+    //(users who joined on the same date stay in the order they were added, like in the tree)
+    protected User[] getContainingIndexed(String query) {
+        String lower = query.toLowerCase();
+        if(lower.length() < 3) return orderedUsers.getContaining(query);  //lower case can be shorter for some characters
+        int[] seqs = trigrams.getCandidates(lower);
+        long[] dates = new long[seqs.length];
+        int count = 0;
+        for(int i = 0; i < seqs.length; i++) {
+            User user = added[seqs[i]];
+            //names containing all the trigrams of the query don't necessarily contain the query
+            if(user.getName().toLowerCase().contains(lower)) {
+                seqs[count] = seqs[i];
+                dates[count] = user.getDateJoined().getTime();
+                count++;
+            }
+        }
+        sortByDate(seqs, dates, 0, count, new int[count], new long[count]);
+        User[] containing = new User[count];
+        for(int i = 0; i < count; i++) {
+            containing[i] = added[seqs[i]];
+        }
+        return containing;
+    }
+    
+    //stable merge sort of the user numbers between from (inclusive) and to (exclusive) in descending order by their dates (tmpSeqs and tmpDates are used while merging)
+    protected void sortByDate(int[] seqs, long[] dates, int from, int to, int[] tmpSeqs, long[] tmpDates) {
+        if(to - from < 2) return;
+        int middle = (from + to) >>> 1;
+        sortByDate(seqs, dates, from, middle, tmpSeqs, tmpDates);
+        sortByDate(seqs, dates, middle, to, tmpSeqs, tmpDates);
+        int i = from;
+        int j = middle;
+        int k = from;
+        while( (i < middle) && (j < to) ) {
+            if(dates[i] >= dates[j]) {
+                tmpSeqs[k] = seqs[i];
+                tmpDates[k] = dates[i];
+                i++;
+            } else {
+                tmpSeqs[k] = seqs[j];
+                tmpDates[k] = dates[j];
+                j++;
+            }
+            k++;
+        }
+        while(i < middle) {
+            tmpSeqs[k] = seqs[i];
+            tmpDates[k] = dates[i];
+            i++;
+            k++;
+        }
+        while(j < to) {
+            tmpSeqs[k] = seqs[j];
+            tmpDates[k] = dates[j];
+            j++;
+            k++;
+        }
+        for(k = from; k < to; k++) {
+            seqs[k] = tmpSeqs[k];
+            dates[k] = tmpDates[k];
+        }
     }
 
     public boolean addUser(User usr) {
-        orderedUsers.incSize();
         if( users.add(usr.getId(),usr) ) {
+            orderedUsers.incSize();
             orderedUsers.insert(usr);
+            addToIndex(usr);
             return true;
         }
         return false;
     }
+    
+    //adds many users at once: duplicates are rejected through the hash map, the rest are sorted by date (in parallel) and the tree is rebuilt bottom-up
+    //returns the number of users that were added
+    public int addUsers(User[] usrs) {
+        users.ensureCapacity(users.size() + usrs.length);
+        User[] batch = new User[usrs.length];
+        int n = 0;
+        for(int i = 0; i < usrs.length; i++) {
+            if( (usrs[i] != null) && users.add(usrs[i].getId(), usrs[i]) ) {
+                batch[n] = usrs[i];
+                addToIndex(usrs[i]);
+                n++;
+            }
+        }
+        if(n > 0) {
+            //the sort is stable, so users on the same date stay in the order they were passed in (the order addUser would keep them in)
+            Arrays.parallelSort(batch, 0, n, new Comparator<User>() {
+                public int compare(User u1, User u2) {
+                    return Long.compare(u2.getDateJoined().getTime(), u1.getDateJoined().getTime());
+                }
+            });
+            orderedUsers.insertSorted(batch, n);
+        }
+        return n;
+    }
+
+    //writes the users to a snapshot section in the order they were added: ids, dates joined (in milliseconds) and names
+    void writeSnapshot(StoreSnapshot.Writer out) throws IOException {
+        int n = addedCount;
+        int[] ids = new int[n];
+        long[] dates = new long[n];
+        String[] names = new String[n];
+        for(int i = 0; i < n; i++) {
+            ids[i] = added[i].getId();
+            dates[i] = added[i].getDateJoined().getTime();
+            names[i] = added[i].getName();
+        }
+        out.writeInt(n);
+        out.writeInts(ids, n);
+        out.writeLongs(dates, n);
+        out.writeStrings(names, n);
+    }
+    
+    //restores the users of a snapshot section through addUsers(), so they get the same numbers and the tree is built bottom-up (the store must be empty)
+    void readSnapshot(StoreSnapshot.Reader in) throws IOException {
+        if(users.size() > 0) throw new IllegalStateException("Snapshots can only be read into an empty store");
+        int n = in.readInt();
+        if(n < 0) throw new IOException("Snapshot has a negative number of users");
+        int[] ids = in.readInts(n);
+        long[] dates = in.readLongs(n);
+        String[] names = in.readStrings(n);
+        User[] usrs = new User[n];
+        for(int i = 0; i < n; i++) {
+            usrs[i] = new User(names[i], ids[i], new Date(dates[i]));
+        }
+        addUsers(usrs);
+    }
 
     public User getUser(int uid) {
         return users.get(uid);
@@ -431,6 +957,8 @@ public class UserStore implements IUserStore {
         
     //return an array of all the Users whose names contain the given queryString, sorted such that the most recently joined User is first
     public User[] getUsersContaining(String query) {
+        //queries of at least 3 characters are answered by the trigram index, shorter ones by looking through all users
+        if( (query != null) && (query.length() >= 3) ) return getContainingIndexed(query);
         return orderedUsers.getContaining(query);
     }
         
@@ -438,4 +966,77 @@ public class UserStore implements IUserStore {
     public User[] getUsersJoinedBefore(Date dateBefore) {
         return orderedUsers.getBefore(dateBefore);
     }
-}
\ No newline at end of file
+    
+    //return an array of all the Users joined between the given dates (both inclusive), sorted such that the most recently joined User is first
+    public User[] getUsersJoinedBetween(Date from, Date to) {
+        return orderedUsers.getBetween(from.getTime(), to.getTime());
+    }
+    
+    //return up to limit users, starting after the first offset users of getUsersJoinedBetween()
+    public User[] getUsersJoinedBetween(Date from, Date to, int offset, int limit) {
+        int upTo = orderedUsers.countBefore(to.getTime(), true);
+        int count = upTo - orderedUsers.countBefore(from.getTime(), false);
+        offset = Math.max(offset, 0);
+        if(offset >= count) return new User[0];
+        //the users in the range start right after the ones who joined later
+        UserCursor cursor = new UserCursor(orderedUsers, orderedUsers.size() - upTo + offset);
+        return cursor.take(Math.min(limit, count - offset));
+    }
+    
+    //return up to limit users, starting after the first offset users of getUsers()
+    public User[] getUsers(int offset, int limit) {
+        UserCursor cursor = new UserCursor(orderedUsers, Math.max(offset, 0));
+        return cursor.take(limit);
+    }
+    
+    //return up to limit users of getUsers() which come after the user with the passed join date and id (the last user of the previous page)
+    public User[] getUsersOlderThan(Date date, int id, int limit) {
+        UserCursor cursor = new UserCursor(orderedUsers, date.getTime());
+        cursor.skipPast(date.getTime(), id);
+        return cursor.take(limit);
+    }
+    
+    //return up to limit users, starting after the first offset users of getUsersJoinedBefore()
+    public User[] getUsersJoinedBefore(Date dateBefore, int offset, int limit) {
+        //the users joined before the date start right after the ones who joined later
+        int later = orderedUsers.size() - orderedUsers.countBefore(dateBefore.getTime(), true);
+        UserCursor cursor = new UserCursor(orderedUsers, later + Math.max(offset, 0));
+        return cursor.take(limit);
+    }
+    
+    //return the number of users who joined before the date (inclusive), without building the array of getUsersJoinedBefore()
+    public int countUsersJoinedBefore(Date dateBefore) {
+        return orderedUsers.countBefore(dateBefore.getTime(), true);
+    }
+    
+    //return the number of users who joined between the dates (both inclusive)
+    public int countUsersJoinedBetween(Date from, Date to) {
+        int count = orderedUsers.countBefore(to.getTime(), true) - orderedUsers.countBefore(from.getTime(), false);
+        return Math.max(count, 0);
+    }
+    
+    //return the user at position index of getUsers() (0 is the most recently joined user), or null if there is no such position
+    public User getUserAt(int index) {
+        return orderedUsers.select(index);
+    }
+    
+    //iterates over the users from the most recently joined one, only keeping a stack of O(log n) nodes (users must not be added while iterating)
+    public Iterator<User> iterateUsers() {
+        return new UserCursor(orderedUsers);
+    }
+    
+    //iterates over the users who joined before the date (inclusive) from the most recently joined one
+    public Iterator<User> iterateUsersJoinedBefore(Date dateBefore) {
+        return new UserCursor(orderedUsers, dateBefore.getTime());
+    }
+    
+    //a stream of the users sorted such that the most recently joined User is first, which can be split for parallel streams
+    public Stream<User> streamUsers() {
+        return StreamSupport.stream(new UserSpliterator(new UserCursor(orderedUsers)), false);
+    }
+    
+    //a stream of the users who joined before the date (inclusive) sorted such that the most recently joined User is first
+    public Stream<User> streamUsersJoinedBefore(Date dateBefore) {
+        return StreamSupport.stream(new UserSpliterator(new UserCursor(orderedUsers, dateBefore.getTime())), false);
+    }
+}
@@ -1,11 +1,23 @@
 /**
- * A Hash Map where each element in a bucket is indexed by user id and contains an AVL Tree of their weets, sorted by date, ensures fast access and insertion for a weets user (used in getUser())
+ * Weets are stored as columns, one row per weet in the order they were added: ids, dictionary numbers of their users, dates in milliseconds and handles of their messages
+ * Messages are kept once, as UTF-8 in 16MB chunks and found by a chunk number and offset (so they can add up to more than 2GB), and matched in place, lower casing ASCII bytes through a table
+ * The chunks are heap buffers, or (WeetStore(zone, true)) direct buffers outside the Java heap, and no weet objects are kept: they are made again from the columns when they are returned
+ * The trees and maps hold row numbers instead of references to weets, so walking and comparing them reads the columns
+ * Open addressing hash maps find the row of a weet id and the dictionary number of a user id, whose AVL Tree of weets sorted by date is kept in an array (used by getWeetsByUser())
  * An AVL Tree where each element represents a day, sorted by date, and contains an AVL Tree of weets on that day, sorted by date, ensures fast insertion and access to weets (used by getWeetsOn(), getWeets() and getWeetsContaining())
- * A Doubly Linked List adds and sorts tags/topics while they are being added and returns an array of the top 10 topics
+ * Linked buckets of tags/topics with equal number of occurances, indexed by an open addressing hash map, keep tags sorted in O(1) per tag while they are being added and return the top 10 topics in O(10)
  * 
- * HashMap class and all classes used by it designed with the help of Shalin Doshi in the CS126 labs
  * Both AVL Trees based on code found at : http://coding-for-fun-in-java.blogspot.co.uk/2012/04/self-balancing-tree-in-java.html
- * Use of Calendar class inspired from : http://stackoverflow.com/questions/9474121/i-want-to-get-year-month-day-etc-from-java-date-to-compare-with-gregorian-calen
+ * Days are stored as the number of days since 1 January 1970 in the store's time zone, worked out once per weet or query without creating Calendar objects
+ * An inverted index from every trigram of the (lower case) messages to the weets containing it answers getWeetsContaining() by intersecting the lists of the query's trigrams
+ * Paged versions of the queries (by offset or after the last weet of the previous page) walk the trees with stacks and stop after the requested number of weets
+ * Date ranges (getWeetsBefore() and getWeetsBetween()) are counted in O(log n), then a cursor seeks to the latest weet in range and stops after the last one, so days outside the range are never visited
+ * The same cursors are available as iterators and as spliterators for (parallel) streams
+ * Every weet node knows the size of its subtree and every day node the number of weets below it, so counts, positions and page offsets are found in O(log n)
+ * getWeetsByUser() results (as rows) of the most read users are kept in a cache bounded by a number of weets, evicting the least recently used user first, and dropped when that user adds a weet
+ * Weets of several users (such as everyone a user follows) are merged lazily through a heap of per-user cursors, so only the requested number of weets is ever visited
+ * StoreSnapshot restores the weets from columns saved with their date and user orders, building every tree bottom-up instead of inserting weets one by one
+ * Every query collects its results in its own WeetCollector, so any number of queries can run at the same time (under a read lock) alongside one addWeet (under the write lock)
  * Assumed an empty search should return all weets
  * "Date before" considered inclusive according to updates on module web page
  * @author: 1525713
@@ -16,188 +28,170 @@ package uk.ac.warwick.java.cs126.services;
 import uk.ac.warwick.java.cs126.models.User;
 import uk.ac.warwick.java.cs126.models.Weet;
 
-import java.io.BufferedReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.zone.ZoneRules;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.Calendar;
-import java.io.FileReader;
-import java.text.ParseException;
+import java.util.TimeZone;
 import java.io.IOException;
-import java.io.FileNotFoundException;
-import java.io.File;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 
 public class WeetStore implements IWeetStore {
     
-    //class based on KeyValuePair class used in cs126 labs
-    class KeyValuePair<K extends Comparable<K>,V> implements Comparable<KeyValuePair<K,V>>{
-
-        protected K key;
-        protected V value;
-        
-        public KeyValuePair(K k, V v) {
-            key = k;
-            value = v;
-        }
-        
-        public K getKey() {
-            return key;
-        }
-        
-        public V getValue() {
-            return value;
-        }
-        
-        public void setValue(V v) {
-            value = v;
-        }
-        
-        public int compareTo(KeyValuePair<K,V> o) {
-            return o.getKey().compareTo(this.getKey());
-        }
-    }
-    
-    //class based on ListElement class used in CS126 labs
-    class ListElement<E> {
-        private final E value;
-        private ListElement<E> next;
-        private ListElement<E> prev;
+    //open addressing hash map (linear probing) from an int key to an int value stored in parallel arrays, used to find the row of a weet id and the dictionary number of a user id
+    class RowIndex {
+        protected int[] keys;
+        protected int[] values;     //-1 marks an empty location
+        protected int size;
+        protected int mask;         //table length - 1 (the length is always a power of 2)
+        protected int threshold;    //number of keys at which the table is doubled
         
-        public ListElement(E value) {
-            this.value = value;
+        public RowIndex() {
+            initTable(1024);
         }
         
-        public E getValue() {
-            return this.value;
+        protected void initTable(int capacity) {
+            keys = new int[capacity];
+            values = new int[capacity];
+            Arrays.fill(values, -1);
+            mask = capacity - 1;
+            threshold = capacity * 3 / 4;   //load factor of 0.75
         }
         
-        public ListElement<E> getNext() {
-            return next;
+        //spreads the bits of the key so that consecutive ids don't form long runs of occupied locations
+        private int hash(int key) {
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
         }
         
-        public ListElement<E> getPrev() {
-            return prev;
+        //returns the value of the key, or -1 if it isn't in the map
+        public int get(int key) {
+            int location = hash(key) & mask;
+            while(values[location] >= 0) {
+                if(keys[location] == key) return values[location];
+                location = (location + 1) & mask;
+            }
+            return -1;
         }
         
-        public void setNext(ListElement<E> e) {
-            next = e;
+        //only called for keys that aren't in the map yet (the value must not be negative)
+        public void put(int key, int value) {
+            int location = hash(key) & mask;
+            while(values[location] >= 0) location = (location + 1) & mask;
+            keys[location] = key;
+            values[location] = value;
+            size++;
+            if(size > threshold) resize();
         }
         
-        public void setPrev(ListElement<E> e) {
-            prev = e;
+        //doubles the table and moves every key to its new location
+        private void resize() {
+            int[] oldKeys = keys;
+            int[] oldValues = values;
+            initTable(oldKeys.length << 1);
+            for(int i = 0; i < oldKeys.length; i++) {
+                if(oldValues[i] >= 0) {
+                    int location = hash(oldKeys[i]) & mask;
+                    while(values[location] >= 0) location = (location + 1) & mask;
+                    keys[location] = oldKeys[i];
+                    values[location] = oldValues[i];
+                }
+            }
         }
     }
     
-    //class based on KeyValuePairLinkedList class used in CS126 labs   
-    class KeyValuePairLinkedList<K extends Comparable<K>,V> {
-
-        protected ListElement<KeyValuePair<K,V>> head;
-        protected int size;
+    //the UTF-8 messages of all weets, in heap buffers or (if direct) outside the Java heap, so the garbage collector never copies or scans them
+    //messages are appended to the last chunk (a message never spans two chunks) and found by a handle: the chunk number in the upper 32 bits and the offset in the lower 32 bits,
+    //so the arena can grow past the 2GB a single array or buffer can hold
+    class MessageArena {
+        protected ByteBuffer[] chunks;
+        protected int chunkCount;
+        protected long capacity;    //bytes allocated by all chunks
+        protected boolean direct;   //true if the chunks are direct buffers
         
-        public KeyValuePairLinkedList() {
-            head = null;
-            size = 0;
+        public MessageArena(boolean direct) {
+            chunks = new ByteBuffer[16];
+            chunkCount = 0;
+            capacity = 0;
+            this.direct = direct;
         }
         
-        public void add(K key, V value) {
-            this.add(new KeyValuePair<>(key, value));
-        }
-
-        public boolean add(KeyValuePair<K,V> kvp) {
-            ListElement<KeyValuePair<K,V>> new_element = new ListElement<>(kvp);
-            ListElement<KeyValuePair<K,V>> tmp = head;
-            
-            while(tmp != null) {
-                if( tmp.getValue().compareTo(new_element.getValue()) > 0 ) {
-                    new_element.setNext(tmp);
-                    if(tmp.getPrev() == null) {
-                        head = new_element;
-                        tmp.setPrev(new_element);
-                        return true;
-                    }
-                    tmp.getPrev().setNext(new_element);
-                    new_element.setPrev(tmp.getPrev());
-                    tmp.setPrev(new_element);
-                    return true;
-                }
-                if(tmp.getNext() == null) {
-                    tmp.setNext(new_element);
-                    return true;
-                }
-                tmp = tmp.getNext();
+        //copies the bytes to the arena (under the write lock) and returns their handle
+        public long add(byte[] bytes) {
+            if( (chunkCount == 0) || (chunks[chunkCount - 1].remaining() < bytes.length) ) {
+                if(chunkCount == chunks.length) chunks = Arrays.copyOf(chunks, chunkCount * 2);
+                int size = Math.max(MESSAGE_CHUNK_SIZE, bytes.length);
+                chunks[chunkCount] = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+                chunkCount++;
+                capacity += size;
             }
-            head = new_element; 
-            return false;
-        }
-        
-        public int size() {
-            return size;
-        }
-        
-        public ListElement<KeyValuePair<K,V>> getHead() {
-            return head;
+            ByteBuffer chunk = chunks[chunkCount - 1];
+            long handle = ((long)(chunkCount - 1) << 32) | chunk.position();
+            chunk.put(bytes);   //readers only use absolute gets, so moving the position is safe
+            return handle;
         }
         
-        public KeyValuePair<K,V> get(K key) {
-            ListElement<KeyValuePair<K,V>> tmp = head;
-            while(tmp != null) {
-                if(tmp.getValue().getKey() == key) {
-                    return tmp.getValue();
-                }
-                tmp = tmp.getNext();
-            }
-            return null;
+        //the chunk of the handle (the offset is (int)handle)
+        public ByteBuffer chunk(long handle) {
+            return chunks[(int)(handle >>> 32)];
         }
     }
     
-    //class based on HashMap from CS126 labs
-    @SuppressWarnings("unchecked")
-    class HashMap<K extends Comparable<K>,V> {
-
-        protected KeyValuePairLinkedList[] table;
-        
-        public HashMap() {
-            this(16001);
-        }
+    //collects the weets found by a single query, so that queries running at the same time don't share any state
+    class WeetCollector {
+        protected Weet[] weets;
+        protected int count;
         
-        public HashMap(int s) {
-            table = new KeyValuePairLinkedList[s];
-            initTable();
+        WeetCollector(int capacity) {
+            weets = new Weet[capacity];
+            count = 0;
         }
         
-        protected void initTable() {
-            for(int i = 0; i < table.length; i++) {
-                table[i] = new KeyValuePairLinkedList<>();
+        public void add(Weet weet) {
+            if(count == weets.length) {
+                //double the array when it is full
+                Weet[] tmp = new Weet[(weets.length * 2) + 1];
+                for(int i = 0; i < count; i++) {
+                    tmp[i] = weets[i];
+                }
+                weets = tmp;
             }
+            weets[count] = weet;
+            count++;
         }
-
-        public boolean add(K key, V value) {
-            int location = key.hashCode() % table.length;
-            if(table[location].get(key) == null) {
-                table[location].add(key, value);
-                return true;
+        
+        //returns the collected weets in an array of exactly the right size
+        public Weet[] toArray() {
+            if(count == weets.length) return weets;
+            Weet[] all = new Weet[count];
+            for(int i = 0; i < count; i++) {
+                all[i] = weets[i];
             }
-            return false;
-        }
-
-        public V get(K key) {
-            int location = key.hashCode() % table.length;
-            KeyValuePair<K,V> pair = table[location].get(key);
-            if(pair != null) return (V)pair.getValue();
-            return null;
+            return all;
         }
     }
     
     class Node {
-        protected Weet weet;
+        protected int row;      //the row of the weet in the columns
         protected int height;   //the height is the length of the longest chain of nodes starting at the node
+        protected int size;     //the number of nodes in the subtree starting at this node
         protected Node left;    //the node which is to the left of this node (which has a lower value that this node)
         protected Node right;   //the node which is to the higher of this node (which has a higher value that this node)
     
-        Node(Weet weet) {
-            this.weet = weet;
+        Node(int row) {
+            this.row = row;
             height = 0;
+            size = 1;
             left = null;
             right = null;
         }
@@ -206,12 +200,58 @@ public class WeetStore implements IWeetStore {
     class WeetTree {
         
         private Node root;
-        private int localCount;
-        private ListElement<Weet> localList;
+        private int size;   //the number of weets in the tree
+        protected int[] timeline;   //the result of getRows() while the tree is in the TimelineCache, null otherwise
+        protected WeetTree newer;   //the tree used more recently than this one in the TimelineCache
+        protected WeetTree older;   //the tree used less recently than this one in the TimelineCache
         
         public WeetTree () {
             root = null;
-            localList = null;
+            size = 0;
+            timeline = null;
+            newer = null;
+            older = null;
+        }
+        
+        public int size() {
+            return size;
+        }
+        
+        //the number of nodes in the subtree (0 for an empty one)
+        private int size(Node tree) {
+            if(tree == null) return 0;
+            return tree.size;
+        }
+        
+        //counts the weets posted before time (or at it, if inclusive) in O(log n) using the subtree sizes
+        public int countBefore(long time, boolean inclusive) {
+            int count = 0;
+            Node tree = root;
+            while(tree != null) {
+                long weeted = times[tree.row];
+                if( (weeted < time) || (inclusive && (weeted == time)) ) {
+                    //this weet and every weet to its left count
+                    count += size(tree.left) + 1;
+                    tree = tree.right;
+                } else tree = tree.left;
+            }
+            return count;
+        }
+        
+        //returns the weet at position index of getAll() (latest first) in O(log n), or null if there is no such position
+        public Weet select(int index) {
+            if( (index < 0) || (index >= size(root)) ) return null;
+            Node tree = root;
+            while(tree != null) {
+                int later = size(tree.right);   //number of weets that come before this one
+                if(index < later) tree = tree.right;
+                else if(index == later) return weetAt(tree.row);
+                else {
+                    index -= later + 1;
+                    tree = tree.left;
+                }
+            }
+            return null;
         }
         
         //rotates the tree/subtree with x as root
@@ -242,6 +282,10 @@ public class WeetStore implements IWeetStore {
             
             if(lh >= rh) newRoot.height = lh + 1;
             else newRoot.height = rh + 1;
+            
+            //x is now below newRoot, so its size is updated first
+            x.size = size(x.left) + size(x.right) + 1;
+            newRoot.size = size(newRoot.left) + size(newRoot.right) + 1;
         
             // newRoot is the head of new tree to be returned
             return newRoot;
@@ -274,16 +318,46 @@ public class WeetStore implements IWeetStore {
             
             if(lh >= rh) newRoot.height = lh + 1;
             else newRoot.height = rh + 1;
+            
+            //x is now below newRoot, so its size is updated first
+            x.size = size(x.left) + size(x.right) + 1;
+            newRoot.size = size(newRoot.left) + size(newRoot.right) + 1;
         
             // newRoot is the head of new tree to be returned
             return newRoot;
         }
         
-        public void insert(Weet weet) {
+        public void insert(int row) {
             //insert the weet at the root of the main tree
-            root = insert(root, weet);
+            root = insert(root, row, times[row]);
+            size++;
+        }
+        
+        //replaces the tree with a balanced one built bottom-up from the rows between from (inclusive) and to (exclusive) of an array sorted in descending order by date
+        //(weets on the same date in the order they were added, which is where insert() would have put them)
+        public void load(int[] sorted, int from, int to) {
+            root = build(sorted, from, to - 1);
+            size = to - from;
+        }
+        private Node build(int[] sorted, int lo, int hi) {
+            if(lo > hi) return null;
+            int mid = (lo + hi) >>> 1;
+            Node tree = new Node(sorted[mid]);
+            tree.right = build(sorted, lo, mid - 1);    //later weets go to the right
+            tree.left = build(sorted, mid + 1, hi);     //earlier weets go to the left
+            tree.size = hi - lo + 1;
+            //set the height the same way insert does (a leaf has height 0)
+            if( (tree.left != null) || (tree.right != null) ) {
+                int lh = 0;
+                int rh = 0;
+                if (tree.left != null) lh = tree.left.height;
+                if (tree.right != null) rh = tree.right.height;
+                if(lh >= rh) tree.height = lh + 1;
+                else tree.height = rh + 1;
+            }
+            return tree;
         }
-        public Node insert(Node tree, Weet weet) {
+        public Node insert(Node tree, int row, long time) {
             
             int lh = 0; //the height of the left tree
             int rh = 0; //the height of the right tree
@@ -291,15 +365,16 @@ public class WeetStore implements IWeetStore {
             
             //if inserting into an empty tree or as a leaf
             if(tree == null) {
-                tree = new Node(weet);
+                tree = new Node(row);
                 return tree;
             }
-            else if(weet.getDateWeeted().getTime() > tree.weet.getDateWeeted().getTime()) {
-                tree.right = insert(tree.right, weet);  //if the date of the weet being inserted is later than the date of the weet at this node, insert to right
+            else if(time > times[tree.row]) {
+                tree.right = insert(tree.right, row, time);  //if the date of the weet being inserted is later than the date of the weet at this node, insert to right
             }
-            else if(weet.getDateWeeted().getTime() <= tree.weet.getDateWeeted().getTime()) {
-                tree.left = insert(tree.left, weet);    //otherwise, insert to left
+            else if(time <= times[tree.row]) {
+                tree.left = insert(tree.left, row, time);    //otherwise, insert to left
             }            
+            tree.size++;
             
             //set the height of the new (modified) tree       
             if (tree.left != null) lh = tree.left.height;
@@ -310,24 +385,24 @@ public class WeetStore implements IWeetStore {
             balance = lh - rh;
             
             //left-left case
-            if( (balance > 1) && (weet.getDateWeeted().getTime() <= tree.left.weet.getDateWeeted().getTime()) ) {
+            if( (balance > 1) && (time <= times[tree.left.row]) ) {
                 //rotate this right
                 return rotateRight(tree);
             }
             //left-right case
-            else if( (balance > 1) && (weet.getDateWeeted().getTime() > tree.left.weet.getDateWeeted().getTime()) ) {      
+            else if( (balance > 1) && (time > times[tree.left.row]) ) {      
                 //rotate left tree left
                 tree.left = rotateLeft(tree.left);
                 //rotate this right
                 return rotateRight(tree);
             }
             //right-right case
-            else if( (balance < -1) && (weet.getDateWeeted().getTime() > tree.right.weet.getDateWeeted().getTime()) ) {       
+            else if( (balance < -1) && (time > times[tree.right.row]) ) {       
                 //rotate this left
                 return rotateLeft(tree);
             }
             //right-left case
-            else if( (balance < -1) && (weet.getDateWeeted().getTime() <= tree.right.weet.getDateWeeted().getTime()) ) {     
+            else if( (balance < -1) && (time <= times[tree.right.row]) ) {     
                 //rotate right tree right
                 tree.right = rotateRight(tree.right);
                 //rotate this left
@@ -337,107 +412,86 @@ public class WeetStore implements IWeetStore {
             return tree;
         }
         
-        //creates a list of the weets and returns their number so that the array to be returned is declared with according size
-        public void getInOrder() {
-            getInOrder(root);   //gets weets in the main tree by passing the root
+        //adds the weets to the collector sorted in descending order by date
+        public void getInOrder(WeetCollector found) {
+            getInOrder(root, found);   //gets weets in the main tree by passing the root
         }
-        public void getInOrder(Node tree) {
+        public void getInOrder(Node tree, WeetCollector found) {
             if(tree != null) {
-                getInOrder(tree.right); //get weets in the subtree that is to the right of this node
+                getInOrder(tree.right, found); //get weets in the subtree that is to the right of this node
                 //get the weet stored at this node
-                allWeets[count] = tree.weet;
-                count++;
+                found.add(weetAt(tree.row));
                 //get weets in the subtree that is to the lef of this node
-                getInOrder(tree.left);
+                getInOrder(tree.left, found);
             }
         }
-        public int getInList() {
-            localCount = 0; //the counter for weets in the list
-            localList = new ListElement<>(null);    //a list of weets in this particular tree
-            weetList = localList;   //initialize the global list of weets
-            getInList(root);   //gets weets in the main tree by passing the root
-            return localCount;  //return the number of weets to be retrieved
+        //returns the rows of all the weets in the tree sorted in descending order by date
+        public int[] getRows() {
+            int[] rows = new int[size];
+            getRows(root, rows, 0);
+            return rows;
         }
-        public void getInList(Node tree) {
+        //adds the rows of the subtree to the array from position count, returns the position after the last one
+        private int getRows(Node tree, int[] rows, int count) {
             if(tree != null) {
-                getInList(tree.right); //get weets in the subtree that is to the right of this node
-                //get the weet stored at this node
-                ListElement<Weet> tmp = new ListElement<>(tree.weet);
-                tmp.setNext(localList);
-                localList.setPrev(tmp);
-                localList = tmp;
-                localCount++;
-                //get weets in the subtree that is to the lef of this node
-                getInList(tree.left);
+                count = getRows(tree.right, rows, count);
+                rows[count] = tree.row;
+                count++;
+                count = getRows(tree.left, rows, count);
             }
+            return count;
+        }
+        //returns all the weets in the tree sorted in descending order by date
+        public Weet[] getAll() {
+            WeetCollector found = new WeetCollector(size);
+            getInOrder(root, found);
+            return found.toArray();
         }
         
-        //creates a list of the weets containg the query string and counts their number so that the array to be returned is declared with according size
-        public void getContaining(String query) {
-            localList = new ListElement<>(null);    //initialize the list which will store weets in this tree
+        //adds the weets containg the query string (already in lower case, and its UTF-8 bytes if messages are off the heap) to the collector, sorted in descending order by date
+        public void getContaining(String query, byte[] bytes, WeetCollector found) {
             if( (query != null) && (!query.isEmpty()) )  {
-                getContaining(root, query); //checks the weets stored in the main tree by passing its root
-            }
-            else getInOrder();  //if no actual string of characters was specified, return all weets (ASSUMPTION)
-        }
-        private void getContaining(Node tree, String query) {
-            if(tree != null) {
-                getContaining(tree.left, query);    //check weets in the subtree tat is to the left of this node
-                if(tree.weet.getMessage().toLowerCase().contains(query.toLowerCase())) { //check if the weet stored at this node contains the query string
-                    //add the weet stored at this node to the list of weets to be outputed
-                    ListElement<Weet> tmp = new ListElement<>(tree.weet);
-                    tmp.setNext(weetList);
-                    weetList.setPrev(tmp);
-                    weetList = tmp;
-                    count++;
-                }
-                getContaining(tree.right, query);   //ckeck weets in the subtree tat is to the right of this node
+                getContaining(root, query, bytes, found); //checks the weets stored in the main tree by passing its root
             }
+            else getInOrder(root, found);  //if no actual string of characters was specified, return all weets (ASSUMPTION)
         }
-        
-        //creates a list of the weets on dates before dateBefore (inclusive - according to updates on module page) and counts their number so that the array to be returned is declared with according size        
-        public void getBefore(Date dateBefore) {
-            weetList = new ListElement<>(null); //initialize the global list of weets    
-            getBefore(root, dateBefore);    //checks the weets in the main tree by passing its root
-        }
-        private void getBefore(Node tree, Date dateBefore) {
+        private void getContaining(Node tree, String query, byte[] bytes, WeetCollector found) {
             if(tree != null) {
-                getBefore(tree.left, dateBefore);   //check the weets in the subtree to the left of this node 
-                //(whether this date is less, equal or greater than dateBefore, the weets in the left subtree only get smaller and should be checked)
-                //if the weet stored at this node is from a date before dateBefore (inclusive), add to the list 
-                if( tree.weet.getDateWeeted().before(dateBefore) ) {
-                    ListElement<Weet> tmp = new ListElement<>(tree.weet); //add the weet stored at this node to the list
-                    tmp.setNext(weetList);
-                    weetList.setPrev(tmp);
-                    weetList = tmp;
-                    count++;
-                    getBefore(tree.right, dateBefore);  //since this weet is from before dateBefore, there may still be weets from after this date with the same property
-                } else if( tree.weet.getDateWeeted().equals(dateBefore)) {
-                    ListElement<Weet> tmp = new ListElement<>(tree.weet);   //add the weet stored at this node to the list
-                    tmp.setNext(weetList);
-                    weetList.setPrev(tmp);
-                    weetList = tmp;
-                    count++;
-                    //there is no point looking at weets to the right of this one, since they will be from a later date and so will be from after dateBefore
+                getContaining(tree.right, query, bytes, found);    //check weets in the subtree tat is to the right of this node
+                if(messageContains(tree.row, query, bytes)) { //check if the weet stored at this node contains the query string
+                    //add the weet stored at this node to the weets to be outputed
+                    found.add(weetAt(tree.row));
                 }
+                getContaining(tree.left, query, bytes, found);   //ckeck weets in the subtree tat is to the left of this node
             }
         }
     }
     
     //special type of node for the DateTree structure
     class DateNode {
-        protected KeyValuePair<Integer,WeetTree> weets; //each node holds a weet
+        protected int day;          //the day of the weets at this node (number of days since 1 January 1970 in the store's time zone)
+        protected WeetTree weets;   //the weets of that day
         protected int height;       //the height is the length of the longest chain of nodes starting at the node
+        protected int count;        //the number of weets of all the days in the subtree starting at this node
         protected DateNode left;    //the node which is to the left of this node (which has a lower value that this node)
         protected DateNode right;   //the node which is to the higher of this node (which has a higher value that this node)
     
-        DateNode(Weet weet) {
-            WeetTree tmp = new WeetTree();
-            tmp.insert(weet);
-            Calendar cal = Calendar.getInstance();
-            cal.setTime(weet.getDateWeeted());
-            this.weets = new KeyValuePair<>( (cal.get(Calendar.YEAR)*1000) + (cal.get(Calendar.DAY_OF_YEAR) ),tmp); //key will represent the date of the weet (format: yyyyddd)
+        DateNode(int day, int row) {
+            this.day = day;
+            this.weets = new WeetTree();
+            this.weets.insert(row);
+            height = 0;
+            count = 1;
+            left = null;
+            right = null;
+        }
+        
+        //a day whose weets are already in a tree
+        DateNode(int day, WeetTree weets) {
+            this.day = day;
+            this.weets = weets;
             height = 0;
+            count = weets.size();
             left = null;
             right = null;
         }
@@ -461,6 +515,47 @@ public class WeetStore implements IWeetStore {
             size++;
         }
         
+        //the number of weets of all the days in the subtree (0 for an empty one)
+        private int count(DateNode tree) {
+            if(tree == null) return 0;
+            return tree.count;
+        }
+        
+        //counts the weets posted before time (or at it, if inclusive) in O(log n): whole days are counted from the node counts and only the day of time is looked into
+        public int countBefore(int day, long time, boolean inclusive) {
+            int count = 0;
+            DateNode tree = root;
+            while(tree != null) {
+                if(tree.day < day) {
+                    //all the weets of this day and of the days to its left count
+                    count += count(tree.left) + tree.weets.size();
+                    tree = tree.right;
+                } else if(tree.day > day) {
+                    tree = tree.left;
+                } else {
+                    count += count(tree.left) + tree.weets.countBefore(time, inclusive);
+                    break;
+                }
+            }
+            return count;
+        }
+        
+        //returns the weet at position index of getInOrder() (latest first) in O(log n), or null if there is no such position
+        public Weet select(int index) {
+            if( (index < 0) || (index >= count(root)) ) return null;
+            DateNode tree = root;
+            while(tree != null) {
+                int later = count(tree.right);  //number of weets from later days
+                if(index < later) tree = tree.right;
+                else if(index < later + tree.weets.size()) return tree.weets.select(index - later);
+                else {
+                    index -= later + tree.weets.size();
+                    tree = tree.left;
+                }
+            }
+            return null;
+        }
+        
         private DateNode rotateRight(DateNode x) {
             //the height of a tree is the number of nodes in the longest chain of nodes in that tree
             int lh; //the height of the left tree
@@ -488,6 +583,10 @@ public class WeetStore implements IWeetStore {
             
             if(lh >= rh) newRoot.height = lh + 1;
             else newRoot.height = rh + 1;
+            
+            //x is now below newRoot, so its count is updated first
+            x.count = count(x.left) + count(x.right) + x.weets.size();
+            newRoot.count = count(newRoot.left) + count(newRoot.right) + newRoot.weets.size();
         
             // newRoot is the head of new tree to be returned
             return newRoot;
@@ -520,35 +619,85 @@ public class WeetStore implements IWeetStore {
             
             if(lh >= rh) newRoot.height = lh + 1;
             else newRoot.height = rh + 1;
+            
+            //x is now below newRoot, so its count is updated first
+            x.count = count(x.left) + count(x.right) + x.weets.size();
+            newRoot.count = count(newRoot.left) + count(newRoot.right) + newRoot.weets.size();
         
             // newRoot is the head of new tree to be returned
             return newRoot;
         }
         
-        public void insert(Weet weet) {
-            //System.out.println("Adding to tree " + weet.getPrettyDateWeeted());
-            root = insert(root, weet);
+        public void insert(int row) {
+            //the day is worked out once for the whole insertion
+            root = insert(root, dayOf(times[row]), row);
+        }
+        
+        //replaces the tree with a balanced one built bottom-up from n rows sorted in descending order by date (weets on the same date in the order they were added),
+        //one WeetTree per day, in O(n). Returns false, leaving the tree unchanged, if the days of the weets aren't in descending order
+        //(which can only happen when the offset of the time zone goes back across midnight)
+        public boolean load(int[] sorted, int n) {
+            int[] days = new int[n];
+            for(int i = 0; i < n; i++) {
+                days[i] = dayOf(times[sorted[i]]);
+                if( (i > 0) && (days[i] > days[i - 1]) ) return false;
+            }
+            DateNode[] nodes = new DateNode[n];
+            int dayCount = 0;
+            int start = 0;
+            for(int i = 1; i <= n; i++) {
+                if( (i == n) || (days[i] != days[start]) ) {
+                    WeetTree dayTree = new WeetTree();
+                    dayTree.load(sorted, start, i);
+                    nodes[dayCount] = new DateNode(days[start], dayTree);
+                    dayCount++;
+                    start = i;
+                }
+            }
+            root = build(nodes, 0, dayCount - 1);
+            size = n;
+            return true;
+        }
+        //builds a balanced tree from the days between lo and hi (inclusive) of an array sorted in descending order
+        private DateNode build(DateNode[] nodes, int lo, int hi) {
+            if(lo > hi) return null;
+            int mid = (lo + hi) >>> 1;
+            DateNode tree = nodes[mid];
+            tree.right = build(nodes, lo, mid - 1);     //later days go to the right
+            tree.left = build(nodes, mid + 1, hi);      //earlier days go to the left
+            tree.count = count(tree.left) + count(tree.right) + tree.weets.size();
+            //set the height the same way insert does (a leaf has height 0)
+            if( (tree.left != null) || (tree.right != null) ) {
+                int lh = 0;
+                int rh = 0;
+                if (tree.left != null) lh = tree.left.height;
+                if (tree.right != null) rh = tree.right.height;
+                if(lh >= rh) tree.height = lh + 1;
+                else tree.height = rh + 1;
+            }
+            return tree;
         }
-        public DateNode insert(DateNode tree, Weet weet) {
+        public DateNode insert(DateNode tree, int day, int row) {
             
             //the height of a tree is the number of nodes in the longest chain of nodes in that tree
             int lh = 0; //the height of the left tree
             int rh = 0; //the height of the right tree
             int balance;    //the difference between the left and right subtrees of this node (the difference should never be more than 1)
             
-            Calendar cal = Calendar.getInstance();
-            cal.setTime(weet.getDateWeeted());
-            //key represents the date of the weet (format: yyyyddd)
             if(tree == null) {
-                tree = new DateNode(weet);
+                tree = new DateNode(day, row);
                 return tree;
-            } else if( (cal.get(Calendar.YEAR)*1000) + (cal.get(Calendar.DAY_OF_YEAR)) > tree.weets.getKey()) {
-                tree.right = insert(tree.right, weet);
-            } else if( (cal.get(Calendar.YEAR)*1000) + (cal.get(Calendar.DAY_OF_YEAR)) < tree.weets.getKey()) {
-                tree.left = insert(tree.left, weet);
+            } else if(day > tree.day) {
+                tree.right = insert(tree.right, day, row);
+            } else if(day < tree.day) {
+                tree.left = insert(tree.left, day, row);
             } else {
-                tree.weets.getValue().insert(weet);
+                //the day is already in the tree, so its shape doesn't change
+                tree.weets.insert(row);
+                tree.count++;
+                return tree;
             }
+            tree.count++;
             
             //set the height of the new (modified) tree       
             if (tree.left != null) lh = tree.left.height;
@@ -559,20 +708,20 @@ public class WeetStore implements IWeetStore {
             balance = lh - rh;
             
             //left-left case
-            if( (balance > 1) && ( (cal.get(Calendar.YEAR)*1000) + (cal.get(Calendar.DAY_OF_YEAR)) < tree.weets.getKey() ) ) {
+            if( (balance > 1) && (day < tree.left.day) ) {
                 return rotateRight(tree);
             }
             //left-right case            
-            else if( (balance > 1) && ( (cal.get(Calendar.YEAR)*1000) + (cal.get(Calendar.DAY_OF_YEAR)) > tree.weets.getKey() ) ) {
+            else if( (balance > 1) && (day > tree.left.day) ) {
                 tree.left = rotateLeft(tree.left);
                 return rotateRight(tree);
             }
             //right-right case            
-            else if( (balance < -1) && ( (cal.get(Calendar.YEAR)*1000) + (cal.get(Calendar.DAY_OF_YEAR)) > tree.weets.getKey() ) ) {       
+            else if( (balance < -1) && (day > tree.right.day) ) {       
                 return rotateLeft(tree);
             }
             //right-left case
-            else if( (balance < -1) && ( (cal.get(Calendar.YEAR)*1000) + (cal.get(Calendar.DAY_OF_YEAR)) < tree.weets.getKey() ) ) {     
+            else if( (balance < -1) && (day < tree.right.day) ) {     
                 tree.right = rotateRight(tree.right);
                 return rotateLeft(tree);
             }
@@ -581,294 +730,1757 @@ public class WeetStore implements IWeetStore {
         }
         
         //gets all the weets sorted in descending order by date
-        public void getInOrder() {
-            allWeets = new Weet[size];  //initialize the array that will store weets
-            count = 0;
-            getInOrder(root);
+        public Weet[] getInOrder() {
+            WeetCollector found = new WeetCollector(size);  //the array that will store weets
+            getInOrder(root, found);
+            return found.toArray();
         }
-        public void getInOrder(DateNode tree) {
+        public void getInOrder(DateNode tree, WeetCollector found) {
             if(tree != null) {
-                getInOrder(tree.right);
-                tree.weets.getValue().getInOrder();
-                getInOrder(tree.left);
+                getInOrder(tree.right, found);
+                tree.weets.getInOrder(found);
+                getInOrder(tree.left, found);
             }
         }
         
         //returns all the weets containing query in their message, sorted in descending order by date
-        public void getContaining(String query) {
-            weetList = new ListElement<>(null); //initialize the list that will store the weets
-            count = 0;  //count found weets to initialize array to be returned
+        public Weet[] getContaining(String query) {
             if( (query != null) && (!query.isEmpty()) )  {
-                getContaining(root, query); //look through tree starting at root
-                //move weets from list into array
-                allWeets = new Weet[count];
-                for(int i = 0; (i < count) && (weetList != null); i ++) {
-                    allWeets[i] = weetList.getValue();
-                    weetList = weetList.getNext();
-                }
-                weetList = null;
+                WeetCollector found = new WeetCollector(16);
+                String lower = query.toLowerCase();
+                getContaining(root, lower, queryBytes(lower), found); //look through tree starting at root
+                return found.toArray();
             }
             //if query was empty return all weets
-            else getInOrder();
+            else return getInOrder();
         }
-        private void getContaining(DateNode tree, String query) {
+        private void getContaining(DateNode tree, String query, byte[] bytes, WeetCollector found) {
             if(tree != null) {
-                getContaining(tree.left, query);            //get weets in the tree to the left of this noes
-                tree.weets.getValue().getContaining(query); //get weets in the tree located at this node
-                getContaining(tree.right, query);           //get weets in the tree to the right of this node
+                getContaining(tree.right, query, bytes, found);            //get weets in the tree to the right of this node
+                tree.weets.getContaining(query, bytes, found);  //get weets in the tree located at this node
+                getContaining(tree.left, query, bytes, found);             //get weets in the tree to the left of this node
             }
         }
         
+        //gets the weets posted between from and to (both inclusive) sorted in descending order by date
+        //the count of weets in the range is found in O(log n) from the node counts, then a cursor seeks to the latest one and stops after them, so days outside the range are never visited
+        public Weet[] getBetween(long from, long to) {
+            return getLatest(to, countBefore(dayOf(to), to, true) - countBefore(dayOf(from), from, false));
+        }
+        
         //gets weets before dateBefore (inclusive - as specified in the updates from the module web page)
-        public void getBefore(Date dateBefore) {
-            weetList = new ListElement<>(null); //initialize the list which will hold the weets
-            count = 0;  //used to count found weets in order to initialize the array which will be returned
-            getBefore(root, dateBefore);
-            if(count > 0) {
-                //move weets from list into array
-                allWeets = new Weet[count];    
-                for(int i = 0; (i < count) && (weetList != null); i ++) {
-                    allWeets[i] = weetList.getValue();
-                    weetList = weetList.getNext();
-                }
-                weetList = null;
-            } else {
-                allWeets = new Weet[0];
-                weetList = null;
-            }
+        public Weet[] getBefore(Date dateBefore) {
+            long to = dateBefore.getTime();
+            return getLatest(to, countBefore(dayOf(to), to, true));
         }
-        private void getBefore(DateNode tree, Date dateBefore) {
-            if(tree != null) {
-                //whether the date of the weets at this node is later, equal or before dateBefore, the weets to the left will only be on earlyer dates so should be checked
-                getBefore(tree.left, dateBefore);
-                Calendar cal = Calendar.getInstance();
-                cal.setTime(dateBefore);
-                //key represents the date of the weet (format: yyyyddd)
-                if( tree.weets.getKey() < ( (cal.get(Calendar.YEAR)*1000) + (cal.get(Calendar.DAY_OF_YEAR)) ) ) {
-                    //the weets at this node respect the condition and later weets might too
-                    tree.weets.getValue().getBefore(dateBefore);
-                    getBefore(tree.right, dateBefore);
-                } else if( tree.weets.getKey() == ( (cal.get(Calendar.YEAR)*1000) + (cal.get(Calendar.DAY_OF_YEAR)) ) ) {
-                    //the weets at this location are from the exact date so later weets will all be from later dates
-                    tree.weets.getValue().getBefore(dateBefore);
-                }
+        
+        //gets the first count weets posted on or before time, latest first
+        private Weet[] getLatest(long time, int count) {
+            if(count <= 0) return new Weet[0];
+            Weet[] latest = new Weet[count];
+            WeetCursor cursor = new WeetCursor(this, dayOf(time), time);
+            for(int i = 0; i < count; i++) {
+                latest[i] = cursor.next();
             }
+            return latest;
         }
         
         //gets the weets which were posted on the passed date
         public WeetTree getOnDate(Date dateOn) {
-            Calendar cal = Calendar.getInstance();
-            cal.setTime(dateOn);
-            return getOnDate(root, (cal.get(Calendar.YEAR)*1000) + (cal.get(Calendar.DAY_OF_YEAR)) );
+            return getOnDate(root, dayOf(dateOn.getTime()));
         }
-        //dayOn will represet the day (format: yyyyddd)
+        //dayOn will represet the day (number of days since 1 January 1970)
         private WeetTree getOnDate(DateNode tree, int dayOn) {
             if(tree != null) {
-                if(tree.weets.getKey() > dayOn) return getOnDate(tree.left, dayOn);
-                else if(tree.weets.getKey() < dayOn) return getOnDate(tree.right, dayOn);
-                else if(tree.weets.getKey() == dayOn) return tree.weets.getValue();
+                if(tree.day > dayOn) return getOnDate(tree.left, dayOn);
+                else if(tree.day < dayOn) return getOnDate(tree.right, dayOn);
+                else if(tree.day == dayOn) return tree.weets;
             }
             return null;
         }
     }
     
-    //stores the tags to be returned by getTrending
-    class TrendingList {
-        protected ListElement<KeyValuePair<String,Integer>> tags;   //key is the tag and value represents the number of occurances
-        protected int listSize;
+    //walks the DateTree (or a single WeetTree) in descending order by date using a stack of days and a stack of weets still to be visited, so weets are only reached when asked for
+    class WeetCursor implements Iterator<Weet> {
+        private DateNode[] days;    //days still to be visited (with the days to their left)
+        private int dayTop;
+        private Node[] weets;       //weets of the current day still to be visited (with the weets to their left)
+        private int weetTop;
         
-        public TrendingList() {
-            tags = null;
-            listSize = 0;
+        //an empty cursor, only used by the other constructors
+        private WeetCursor() {
+            days = new DateNode[0];
+            dayTop = 0;
+            weets = new Node[16];
+            weetTop = 0;
         }
         
-        public String[] getTrending() {
-            if(listSize < 10) return null;
-            String[] trending = new String[10];
-            ListElement<KeyValuePair<String,Integer>> temp = tags;
-            for(int i = 0; (i < 10) && (temp != null); i++) {
-                trending[i] = temp.getValue().getKey();
-                temp = temp.getNext();
+        //starts at the latest weet of the tree
+        WeetCursor(DateTree tree) {
+            this();
+            days = new DateNode[(tree.root != null ? tree.root.height : 0) + 2];
+            pushRight(tree.root);
+        }
+        
+        //starts at the latest weet of the tree posted on or before time, found in O(log n)
+        WeetCursor(DateTree tree, int day, long time) {
+            this();
+            days = new DateNode[(tree.root != null ? tree.root.height : 0) + 2];
+            DateNode node = tree.root;
+            while(node != null) {
+                if(node.day <= day) {
+                    //this day is valid and later ones to the right might be too, earlier ones to the left are visited after it
+                    days[dayTop] = node;
+                    dayTop++;
+                    node = node.right;
+                } else node = node.left;
+            }
+            //only the weets of the same day have to be compared with time
+            if( (dayTop > 0) && (days[dayTop - 1].day == day) ) {
+                dayTop--;
+                DateNode sameDay = days[dayTop];
+                pushRight(sameDay.left);
+                seek(sameDay.weets, time);
             }
-            return trending;
         }
         
-        //strips tags from message and adds to list
-        public void addTags(Weet weet) {
-            String message = weet.getMessage();
-            boolean processing = false; //keeps track of whether the method has started recording a topic
-            int begins = 0; //stores the index of the first character of tag being processed 
-            int ends = 0;   //stores the index of the last recorded character of tag being processed
-            for (int i = 0; i < message.length(); i++){
-                char c = message.charAt(i);
-                //if a tag begins at this character
-                if(c == '#') {
-                    //if no tags were being processed when reached this tag
-                    if(!processing) {
-                        processing = true;
-                        begins = i;
-                        ends = i;
-                    }
-                    else {
-                        //chained hashtags - first has ended - add hashtag
-                        String newTag = message.substring(begins, ends);
-                        addTag(newTag);
-                        begins = i;
-                        ends = i;
-                    }
-                } else if(processing) {
-                    if(Character.isWhitespace(c) || c == '.' || c == ',' || c == '!' || c == '?') {
-                        //reached end of tag - add hashtag
-                        String newTag = message.substring(begins, ends);
-                        addTag(newTag);
-                        processing = false;
-                    } else {
-                        //still processing current hashtag - keep going
-                        ends = i;                      
-                        if(i == message.length() - 1) {
-                            //no other characters left - add hashtag
-                            String newTag = message.substring(begins);
-                            addTag(newTag);
-                            processing = false;
-                        }
-                    }
+        //starts at the weet at position index of the tree's getInOrder() (latest first), found in O(log n) using the day counts
+        WeetCursor(DateTree tree, int index) {
+            this();
+            days = new DateNode[(tree.root != null ? tree.root.height : 0) + 2];
+            DateNode node = tree.root;
+            while(node != null) {
+                int later = (node.right != null) ? node.right.count : 0;
+                if(index < later) {
+                    //the starting weet is from a later day, this day is visited after it
+                    days[dayTop] = node;
+                    dayTop++;
+                    node = node.right;
+                } else if(index < later + node.weets.size()) {
+                    //the starting weet is from this day, earlier days to the left are visited after it
+                    pushRight(node.left);
+                    seek(node.weets, index - later);
+                    break;
+                } else {
+                    index -= later + node.weets.size();
+                    node = node.left;
                 }
             }
         }
-        private void addTag(String newTag) {
-            if(tags != null) {
-                ListElement<KeyValuePair<String,Integer>> temp = tags;
-                while( (!temp.getValue().getKey().equals(newTag)) && (temp.getNext() != null) ) {
-                    temp = temp.getNext();
-                }
-                if( temp.getValue().getKey().equals(newTag) ) {
-                    //tag already in list
-                    temp.getValue().setValue( new Integer(temp.getValue().getValue() + 1) );
-                    //while the tag one elemen higher has a smaller nr of occurances, swap it with this one
-                    while( (temp.getPrev() != null) && (temp.getValue().getValue() > temp.getPrev().getValue().getValue()) ) {
-                        ListElement<KeyValuePair<String,Integer>> prev = temp.getPrev();
-                        if(prev.getPrev() != null) {
-                            prev.getPrev().setNext(temp);
-                        }
-                        if(temp.getNext() != null){
-                            temp.getNext().setPrev(prev);
-                        }
-                        prev.setNext(temp.getNext());
-                        temp.setPrev(prev.getPrev());
-                        temp.setNext(prev);
-                        prev.setPrev(temp);
-                        //if tag just got to the 'head' of the list
-                        if(temp.getPrev() == null) tags = temp;
-                    }
+        
+        //starts at the latest weet of a single tree
+        WeetCursor(WeetTree tree) {
+            this();
+            load(tree);
+        }
+        
+        //starts at the latest weet of a single tree posted on or before time
+        WeetCursor(WeetTree tree, long time) {
+            this();
+            seek(tree, time);
+        }
+        
+        //starts at the weet at position index of a single tree's getAll() (latest first)
+        WeetCursor(WeetTree tree, int index) {
+            this();
+            seek(tree, index);
+        }
+        
+        //pushes the day and the chain of days to its right (the latest ones are visited first)
+        private void pushRight(DateNode day) {
+            while(day != null) {
+                days[dayTop] = day;
+                dayTop++;
+                day = day.right;
+            }
+        }
+        
+        private void pushRight(Node node) {
+            while(node != null) {
+                weets[weetTop] = node;
+                weetTop++;
+                node = node.right;
+            }
+        }
+        
+        //makes the weets of the tree the next ones to be visited
+        private void load(WeetTree tree) {
+            if( (tree.root != null) && (weets.length < tree.root.height + 2) ) weets = new Node[tree.root.height + 2];
+            pushRight(tree.root);
+        }
+        
+        //makes the weets of the tree posted on or before time the next ones to be visited
+        private void seek(WeetTree tree, long time) {
+            if( (tree.root != null) && (weets.length < tree.root.height + 2) ) weets = new Node[tree.root.height + 2];
+            Node node = tree.root;
+            while(node != null) {
+                if(times[node.row] <= time) {
+                    weets[weetTop] = node;
+                    weetTop++;
+                    node = node.right;
+                } else node = node.left;
+            }
+        }
+        
+        //makes the weets of the tree from position index of its getAll() the next ones to be visited, found in O(log n) using the subtree sizes
+        private void seek(WeetTree tree, int index) {
+            if( (tree.root != null) && (weets.length < tree.root.height + 2) ) weets = new Node[tree.root.height + 2];
+            Node node = tree.root;
+            while(node != null) {
+                int later = (node.right != null) ? node.right.size : 0;
+                if(index <= later) {
+                    //this weet comes after the starting one, with the weets to its left
+                    weets[weetTop] = node;
+                    weetTop++;
+                    if(index == later) break;
+                    node = node.right;
                 } else {
-                    //tag insn't in list
-                    temp.setNext(new ListElement<>(new KeyValuePair<>(newTag,1)));
-                    temp.getNext().setPrev(temp);
-                    listSize++;
+                    index -= later + 1;
+                    node = node.left;
                 }
-            } else {
-                //first tag added
-                tags = new ListElement<>(new KeyValuePair<>(newTag,1));
             }
         }
+        
+        //the number of weets still to be visited: each node on the stacks and the weets to its left
+        public long remaining() {
+            long remaining = 0;
+            for(int i = 0; i < dayTop; i++) {
+                remaining += days[i].weets.size() + ((days[i].left != null) ? days[i].left.count : 0);
+            }
+            for(int i = 0; i < weetTop; i++) {
+                remaining += 1 + ((weets[i].left != null) ? weets[i].left.size : 0);
+            }
+            return remaining;
+        }
+        
+        public boolean hasNext() {
+            //move on to the next day when all the weets of this one were visited
+            while( (weetTop == 0) && (dayTop > 0) ) {
+                dayTop--;
+                DateNode day = days[dayTop];
+                pushRight(day.left);
+                load(day.weets);
+            }
+            return weetTop > 0;
+        }
+        
+        //returns the next weet without moving past it
+        public Weet peek() {
+            hasNext();
+            return weetAt(weets[weetTop - 1].row);
+        }
+        
+        //returns the date (in milliseconds) of the next weet from its column, without reaching the weet itself
+        public long peekTime() {
+            hasNext();
+            return times[weets[weetTop - 1].row];
+        }
+        
+        public Weet next() {
+            hasNext();
+            weetTop--;
+            Node next = weets[weetTop];
+            pushRight(next.left);
+            return weetAt(next.row);
+        }
+        
+        //splits the weets still to be visited: the returned cursor visits the first part and this one the rest (null if they can't be split)
+        //each day on the stack stands for itself and the days to its left, so the bottom day stays here and the rest (with the current day) is given away
+        public WeetCursor split() {
+            if( (dayTop == 1) && (weetTop == 0) ) {
+                //start visiting the only day so that the days to its left can be split from it
+                dayTop = 0;
+                DateNode day = days[0];
+                pushRight(day.left);
+                load(day.weets);
+            }
+            WeetCursor first = new WeetCursor();
+            if(dayTop > 0) {
+                //give away the weets of the current day and every day but the bottom one
+                first.weets = weets;
+                first.weetTop = weetTop;
+                first.days = new DateNode[days.length];
+                for(int i = 1; i < dayTop; i++) {
+                    first.days[first.dayTop] = days[i];
+                    first.dayTop++;
+                }
+                weets = new Node[16];
+                weetTop = 0;
+                dayTop = 1;
+                return first;
+            }
+            //only weets of one day are left, split them the same way
+            if(weetTop == 0) return null;
+            Node single = null;    //a weet which has to be visited before the rest when the only node on the stack is split up
+            if(weetTop == 1) {
+                weetTop = 0;
+                single = weets[0];
+                pushRight(single.left);
+                if(weetTop == 0) {
+                    //there is nothing left of it to split
+                    weets[0] = single;
+                    weetTop = 1;
+                    return null;
+                }
+            }
+            first.weets = new Node[weets.length + 1];
+            for(int i = 1; i < weetTop; i++) {
+                first.weets[first.weetTop] = weets[i];
+                first.weetTop++;
+            }
+            if(single != null) {
+                //a copy without children so only this weet is visited
+                first.weets[first.weetTop] = new Node(single.row);
+                first.weetTop++;
+            }
+            weetTop = 1;
+            return first;
+        }
+        
+        //moves past the weets posted at time up to (and including) the one with the passed id (if there is no such weet, past all of them)
+        public void skipPast(long time, int id) {
+            while( hasNext() && (peekTime() == time) ) {
+                if(next().getId() == id) return;
+            }
+        }
+        
+        //moves past n weets
+        public void skip(int n) {
+            for(int i = 0; (i < n) && hasNext(); i++) {
+                next();
+            }
+        }
+        
+        //returns up to limit of the next weets
+        public Weet[] take(int limit) {
+            WeetCollector found = new WeetCollector(Math.max(0, Math.min(limit, 1024)));
+            while( (found.count < limit) && hasNext() ) {
+                found.add(next());
+            }
+            return found.toArray();
+        }
     }
     
-    protected HashMap<Integer,Weet> weets;      //stores weets by id for fast individual access
-    protected HashMap<Integer,WeetTree> users;  //stores users and their weets by id for fast access
-    protected TrendingList topics;  //topics for getTrending
-    protected DateTree dateTree;    //stores weets for each day, sorted by date
-    protected Weet[] allWeets;      //for any array returns
-    protected int count;
-    protected ListElement<Weet> weetList;   //used to store weets before they are moved to allWeets
-
-    public WeetStore() {
-        weets = new HashMap<>();
-        users = new HashMap<>();
-        topics = new TrendingList();
-        dateTree = new DateTree();
-        weetList = new ListElement<>(null);
-        allWeets = new Weet[0];
-    }
-
-    public boolean addWeet(Weet weet) {
-        //if the weet hasn't been added before
-        if( weets.add(weet.getId(), weet) ) {
-            dateTree.incSize();     //increase the weet counter
-            dateTree.insert(weet);  //insert weet into the tree sorted by date
-            topics.addTags(weet);   //add any tags in this weet to the topic list
-            WeetTree tmp = new WeetTree();
-            tmp.insert(weet);
-            //try adding a weet tree for the user that posted this weet
-            if(!users.add(weet.getUserId(), tmp)) {
-                //if there was a tree there already, add this weet to it
-                users.get(weet.getUserId()).insert(weet);
-            }
+    //lets a WeetCursor be used by (parallel) streams
+    class WeetSpliterator implements Spliterator<Weet> {
+        private WeetCursor cursor;
+        
+        WeetSpliterator(WeetCursor cursor) {
+            this.cursor = cursor;
+        }
+        
+        public boolean tryAdvance(Consumer<? super Weet> action) {
+            if(!cursor.hasNext()) return false;
+            action.accept(cursor.next());
             return true;
         }
-        return false;
+        
+        public Spliterator<Weet> trySplit() {
+            WeetCursor first = cursor.split();
+            if(first == null) return null;
+            return new WeetSpliterator(first);
+        }
+        
+        public long estimateSize() {
+            return cursor.remaining();
+        }
+        
+        public int characteristics() {
+            return ORDERED | NONNULL | SIZED | SUBSIZED;
+        }
     }
     
-    public Weet getWeet(int wid) {
-        return weets.get(wid);
-    }
-
-    public Weet[] getWeets() {
-        dateTree.getInOrder();
-        return allWeets;
-    }
-
-    public Weet[] getWeetsByUser(User usr) {
-        count = 0;
-        WeetTree userTree = users.get(usr.getId());
-        if(userTree != null) {
-            count = userTree.getInList();
-            if(count > 0) {
-                allWeets = new Weet[count]; //array to be returned, with size=count of weets this user has
-                //move weets from list into array
-                for(int i = 0; (i < count) && (weetList.getPrev() != null); i ++) {
-                    weetList = weetList.getPrev();
-                    allWeets[i] = weetList.getValue();
+    //merges the cursors over the weets of several users into one descending order by date, using a binary heap keyed by the next weet of each cursor
+    //only the next weet of every user is looked at, so the newest n weets of k users are found in O(k + n log k) without building any user's list
+    class FanInCursor implements Iterator<Weet> {
+        private WeetCursor[] heap;  //the cursor with the latest next weet is at the top (position 0)
+        private long[] times;       //the time of the next weet of each cursor in the heap
+        private int[] order;        //the position of each cursor in the passed array, so weets posted at the same time always come in the same order
+        private int size;
+        private long since;         //weets posted at or before this time are not visited
+        
+        FanInCursor(WeetCursor[] cursors, long since) {
+            heap = new WeetCursor[cursors.length];
+            times = new long[cursors.length];
+            order = new int[cursors.length];
+            size = 0;
+            this.since = since;
+            for(int i = 0; i < cursors.length; i++) {
+                if( (cursors[i] != null) && cursors[i].hasNext() ) {
+                    long time = cursors[i].peekTime();
+                    if(time > since) {
+                        heap[size] = cursors[i];
+                        times[size] = time;
+                        order[size] = i;
+                        size++;
+                    }
                 }
-                weetList = null;
-                return allWeets;
+            }
+            //build the heap bottom-up in O(k)
+            for(int i = (size / 2) - 1; i >= 0; i--) {
+                siftDown(i);
             }
         }
-        allWeets = new Weet[0];
-        return allWeets;
+        
+        //true if the cursor at i has to be visited before the one at j
+        private boolean before(int i, int j) {
+            return (times[i] > times[j]) || ( (times[i] == times[j]) && (order[i] < order[j]) );
+        }
+        
+        private void swap(int i, int j) {
+            WeetCursor cursor = heap[i];
+            heap[i] = heap[j];
+            heap[j] = cursor;
+            long time = times[i];
+            times[i] = times[j];
+            times[j] = time;
+            int position = order[i];
+            order[i] = order[j];
+            order[j] = position;
+        }
+        
+        private void siftDown(int i) {
+            while(true) {
+                int first = i;
+                int left = (2 * i) + 1;
+                int right = left + 1;
+                if( (left < size) && before(left, first) ) first = left;
+                if( (right < size) && before(right, first) ) first = right;
+                if(first == i) return;
+                swap(i, first);
+                i = first;
+            }
+        }
+        
+        public boolean hasNext() {
+            return size > 0;
+        }
+        
+        //returns the next weet without moving past it
+        public Weet peek() {
+            return heap[0].peek();
+        }
+        
+        public Weet next() {
+            WeetCursor top = heap[0];
+            Weet next = top.next();
+            if( top.hasNext() && (top.peekTime() > since) ) {
+                //the cursor stays in the heap with its new next weet
+                times[0] = top.peekTime();
+            } else {
+                //the cursor has no more weets to give, the last one in the heap takes its place
+                size--;
+                heap[0] = heap[size];
+                times[0] = times[size];
+                order[0] = order[size];
+                heap[size] = null;
+            }
+            siftDown(0);
+            return next;
+        }
+        
+        //moves past the weets posted at time up to (and including) the one with the passed id (if there is no such weet, past all of them)
+        public void skipPast(long time, int id) {
+            while( hasNext() && (times[0] == time) ) {
+                if(next().getId() == id) return;
+            }
+        }
+        
+        //returns up to limit of the next weets
+        public Weet[] take(int limit) {
+            WeetCollector found = new WeetCollector(Math.max(0, Math.min(limit, 1024)));
+            while( (found.count < limit) && hasNext() ) {
+                found.add(next());
+            }
+            return found.toArray();
+        }
+    }
+    
+    //the numbers (in the order they were added) of the weets containing a trigram, so it is sorted in ascending order
+    class PostingList {
+        protected int[] seqs;
+        protected int size;
+        
+        PostingList() {
+            seqs = new int[4];
+            size = 0;
+        }
+        
+        public void add(int seq) {
+            //a trigram may appear more than once in the same weet
+            if( (size > 0) && (seqs[size - 1] == seq) ) return;
+            if(size == seqs.length) {
+                int[] tmp = new int[seqs.length * 2];
+                for(int i = 0; i < size; i++) {
+                    tmp[i] = seqs[i];
+                }
+                seqs = tmp;
+            }
+            seqs[size] = seq;
+            size++;
+        }
+        
+        //checks if the number is in the list between from and size, returning its position (or the position it would be at, minus 1, negated)
+        public int search(int seq, int from) {
+            int lo = from;
+            int hi = size - 1;
+            while(lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if(seqs[mid] < seq) lo = mid + 1;
+                else if(seqs[mid] > seq) hi = mid - 1;
+                else return mid;
+            }
+            return -(lo + 1);
+        }
+    }
+    
+    //inverted index from every trigram (3 consecutive characters) of the lower case weet messages to the list of weets containing it
+    //implemented as an open addressing hash map (linear probing) with the 3 characters packed into a long key
+    class TrigramIndex {
+        protected long[] keys;
+        protected PostingList[] values; //a null value marks an empty location
+        protected int size;
+        protected int mask;             //table length - 1 (the length is always a power of 2)
+        protected int threshold;        //number of trigrams at which the table is doubled
+        
+        public TrigramIndex() {
+            initTable(1024);
+        }
+        
+        protected void initTable(int capacity) {
+            keys = new long[capacity];
+            values = new PostingList[capacity];
+            mask = capacity - 1;
+            threshold = capacity * 3 / 4;   //load factor of 0.75
+        }
+        
+        //packs the 3 characters starting at i into one key
+        public long key(String text, int i) {
+            return ((long)text.charAt(i) << 32) | ((long)text.charAt(i + 1) << 16) | (long)text.charAt(i + 2);
+        }
+        
+        private int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int)(h ^ (h >>> 32));
+        }
+        
+        public PostingList get(long key) {
+            int location = hash(key) & mask;
+            while(values[location] != null) {
+                if(keys[location] == key) return values[location];
+                location = (location + 1) & mask;
+            }
+            return null;
+        }
+        
+        //adds the weet with number seq to the lists of all the trigrams in the (lower case) message
+        public void add(String message, int seq) {
+            for(int i = 0; i + 2 < message.length(); i++) {
+                long key = key(message, i);
+                int location = hash(key) & mask;
+                while( (values[location] != null) && (keys[location] != key) ) {
+                    location = (location + 1) & mask;
+                }
+                if(values[location] == null) {
+                    keys[location] = key;
+                    values[location] = new PostingList();
+                    size++;
+                }
+                values[location].add(seq);
+                if(size > threshold) resize();
+            }
+        }
+        
+        //returns the numbers of the weets that contain every trigram of the (lower case) query, by intersecting their lists
+        //(the query must be at least 3 characters long)
+        public int[] getCandidates(String query) {
+            int n = query.length() - 2;
+            PostingList[] lists = new PostingList[n];
+            PostingList smallest = null;
+            for(int i = 0; i < n; i++) {
+                lists[i] = get(key(query, i));
+                if(lists[i] == null) return new int[0];  //no weet contains this trigram
+                if( (smallest == null) || (lists[i].size < smallest.size) ) smallest = lists[i];
+            }
+            //start with the smallest list and keep the numbers found in all the other lists
+            int[] candidates = new int[smallest.size];
+            int count = 0;
+            for(int i = 0; i < smallest.size; i++) {
+                candidates[count] = smallest.seqs[i];
+                count++;
+            }
+            for(int l = 0; (l < n) && (count > 0); l++) {
+                if(lists[l] == smallest) continue;
+                int kept = 0;
+                int from = 0;   //both lists are sorted, so searching can continue from where the last number was
+                for(int i = 0; i < count; i++) {
+                    int found = lists[l].search(candidates[i], from);
+                    if(found >= 0) {
+                        candidates[kept] = candidates[i];
+                        kept++;
+                        from = found + 1;
+                    } else from = -(found + 1);
+                }
+                count = kept;
+            }
+            int[] result = new int[count];
+            for(int i = 0; i < count; i++) {
+                result[i] = candidates[i];
+            }
+            return result;
+        }
+        
+        //doubles the table and moves every list to its new location
+        private void resize() {
+            long[] oldKeys = keys;
+            PostingList[] oldValues = values;
+            initTable(oldKeys.length << 1);
+            for(int i = 0; i < oldKeys.length; i++) {
+                if(oldValues[i] != null) {
+                    int location = hash(oldKeys[i]) & mask;
+                    while(values[location] != null) location = (location + 1) & mask;
+                    keys[location] = oldKeys[i];
+                    values[location] = oldValues[i];
+                }
+            }
+        }
+    }
+    
+    //a tag in the trending list, linked to the tags with the same number of occurances
+    class TagNode {
+        protected String tag;
+        protected CountBucket bucket;   //the bucket of tags with the same number of occurances as this tag
+        protected TagNode prev;         //tag that got to this number of occurances before this one
+        protected TagNode next;         //tag that got to this number of occurances after this one
+        
+        TagNode(String tag) {
+            this.tag = tag;
+        }
+    }
+    
+    //all the tags with the same number of occurances, in the order they reached it
+    class CountBucket {
+        protected int count;
+        protected TagNode head;
+        protected TagNode tail;
+        protected CountBucket higher;   //bucket of tags with the next higher number of occurances
+        protected CountBucket lower;    //bucket of tags with the next lower number of occurances
+        
+        CountBucket(int count) {
+            this.count = count;
+        }
+        
+        public void append(TagNode node) {
+            node.bucket = this;
+            node.next = null;
+            node.prev = tail;
+            if(tail != null) tail.next = node;
+            else head = node;
+            tail = node;
+        }
+        
+        public void remove(TagNode node) {
+            if(node.prev != null) node.prev.next = node.next;
+            else head = node.next;
+            if(node.next != null) node.next.prev = node.prev;
+            else tail = node.prev;
+            node.prev = null;
+            node.next = null;
+        }
+        
+        public boolean isEmpty() {
+            return head == null;
+        }
+    }
+    
+    //open addressing hash map (linear probing) from a tag to its node in the trending list
+    class TagIndex {
+        protected String[] keys;    //a null key marks an empty location
+        protected TagNode[] values;
+        protected int size;
+        protected int mask;         //table length - 1 (the length is always a power of 2)
+        protected int threshold;    //number of tags at which the table is doubled
+        
+        public TagIndex() {
+            initTable(1024);
+        }
+        
+        protected void initTable(int capacity) {
+            keys = new String[capacity];
+            values = new TagNode[capacity];
+            mask = capacity - 1;
+            threshold = capacity * 3 / 4;   //load factor of 0.75
+        }
+        
+        //spreads the bits of the (cached) string hash code
+        private int hash(String key) {
+            int h = key.hashCode() * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+        
+        public TagNode get(String key) {
+            int location = hash(key) & mask;
+            while(keys[location] != null) {
+                if(keys[location].equals(key)) return values[location];
+                location = (location + 1) & mask;
+            }
+            return null;
+        }
+        
+        //finds the tag from the ASCII bytes between from and to in the buffer (their hash is the same as the string's)
+        public TagNode get(ByteBuffer bytes, int from, int to) {
+            int h = 0;
+            for(int i = from; i < to; i++) {
+                h = (31 * h) + bytes.get(i);
+            }
+            h *= 0x9E3779B9;
+            int location = (h ^ (h >>> 16)) & mask;
+            while(keys[location] != null) {
+                if(equal(keys[location], bytes, from, to)) return values[location];
+                location = (location + 1) & mask;
+            }
+            return null;
+        }
+        
+        private boolean equal(String key, ByteBuffer bytes, int from, int to) {
+            if(key.length() != to - from) return false;
+            for(int i = from; i < to; i++) {
+                if(key.charAt(i - from) != bytes.get(i)) return false;
+            }
+            return true;
+        }
+        
+        //only called for tags that aren't in the map yet
+        public void put(String key, TagNode node) {
+            int location = hash(key) & mask;
+            while(keys[location] != null) location = (location + 1) & mask;
+            keys[location] = key;
+            values[location] = node;
+            size++;
+            if(size > threshold) resize();
+        }
+        
+        public int size() {
+            return size;
+        }
+        
+        //doubles the table and moves every tag to its new location
+        private void resize() {
+            String[] oldKeys = keys;
+            TagNode[] oldValues = values;
+            initTable(oldKeys.length << 1);
+            for(int i = 0; i < oldKeys.length; i++) {
+                if(oldKeys[i] != null) {
+                    int location = hash(oldKeys[i]) & mask;
+                    while(keys[location] != null) location = (location + 1) & mask;
+                    keys[location] = oldKeys[i];
+                    values[location] = oldValues[i];
+                }
+            }
+        }
+    }
+    
+    //stores the tags to be returned by getTrending, in buckets of equal number of occurances so that a new occurance only moves a tag to the next bucket
+    class TrendingList {
+        protected CountBucket highest;  //bucket of the most used tags
+        protected CountBucket lowest;   //bucket at which new tags are inserted
+        protected TagIndex index;       //finds the node of a tag without searching the list
+        
+        public TrendingList() {
+            highest = null;
+            lowest = null;
+            index = new TagIndex();
+        }
+        
+        public String[] getTrending() {
+            return getTrending(10);
+        }
+        
+        //returns the k most used tags by only walking the first k tags (null if there are less than k different tags)
+        public String[] getTrending(int k) {
+            if(index.size() < k) return null;
+            String[] trending = new String[k];
+            int i = 0;
+            CountBucket bucket = highest;
+            while( (bucket != null) && (i < k) ) {
+                TagNode temp = bucket.head;
+                while( (temp != null) && (i < k) ) {
+                    trending[i] = temp.tag;
+                    temp = temp.next;
+                    i++;
+                }
+                bucket = bucket.lower;
+            }
+            return trending;
+        }
+        
+        //strips tags from message and adds to list
+        public void addTags(Weet weet) {
+            addTags(weet.getMessage());
+        }
+        
+        public void addTags(String message) {
+            boolean processing = false; //keeps track of whether the method has started recording a topic
+            int begins = 0; //stores the index of the first character of tag being processed 
+            int ends = 0;   //stores the index of the last recorded character of tag being processed
+            for (int i = 0; i < message.length(); i++){
+                char c = message.charAt(i);
+                //if a tag begins at this character
+                if(c == '#') {
+                    //if no tags were being processed when reached this tag
+                    if(!processing) {
+                        processing = true;
+                        begins = i;
+                        ends = i;
+                    }
+                    else {
+                        //chained hashtags - first has ended - add hashtag
+                        String newTag = message.substring(begins, ends);
+                        addTag(newTag);
+                        begins = i;
+                        ends = i;
+                    }
+                } else if(processing) {
+                    if(Character.isWhitespace(c) || c == '.' || c == ',' || c == '!' || c == '?') {
+                        //reached end of tag - add hashtag
+                        String newTag = message.substring(begins, ends);
+                        addTag(newTag);
+                        processing = false;
+                    } else {
+                        //still processing current hashtag - keep going
+                        ends = i;                      
+                        if(i == message.length() - 1) {
+                            //no other characters left - add hashtag
+                            String newTag = message.substring(begins);
+                            addTag(newTag);
+                            processing = false;
+                        }
+                    }
+                }
+            }
+        }
+        //strips tags from the UTF-8 message between from (inclusive) and to (exclusive) in the buffer, in the same way as addTags(String)
+        //tags are only made into strings the first time they are seen, and a message which isn't plain ASCII is decoded and passed to addTags(String) instead
+        public void addTags(ByteBuffer bytes, int from, int to) {
+            for(int i = from; i < to; i++) {
+                if(bytes.get(i) < 0) {
+                    addTags(decode(bytes, from, to));
+                    return;
+                }
+            }
+            boolean processing = false;
+            int begins = 0;
+            int ends = 0;
+            for(int i = from; i < to; i++) {
+                char c = (char)bytes.get(i);
+                if(c == '#') {
+                    if(!processing) {
+                        processing = true;
+                        begins = i;
+                        ends = i;
+                    }
+                    else {
+                        addTag(bytes, begins, ends);
+                        begins = i;
+                        ends = i;
+                    }
+                } else if(processing) {
+                    if(Character.isWhitespace(c) || c == '.' || c == ',' || c == '!' || c == '?') {
+                        addTag(bytes, begins, ends);
+                        processing = false;
+                    } else {
+                        ends = i;
+                        if(i == to - 1) {
+                            addTag(bytes, begins, to);
+                            processing = false;
+                        }
+                    }
+                }
+            }
+        }
+        
+        //adds the ASCII tag between from and to in the buffer
+        private void addTag(ByteBuffer bytes, int from, int to) {
+            TagNode node = index.get(bytes, from, to);
+            if(node == null) {
+                char[] tag = new char[to - from];
+                for(int i = from; i < to; i++) {
+                    tag[i - from] = (char)bytes.get(i);
+                }
+                addTag(new String(tag));
+            }
+            else increment(node);
+        }
+        
+        //increments the number of occurances of the tag in O(1)
+        private void addTag(String newTag) {
+            TagNode node = index.get(newTag);
+            if(node == null) {
+                //tag isn't in list, it goes to the end of the bucket of tags used once
+                node = new TagNode(newTag);
+                index.put(newTag, node);
+                if( (lowest == null) || (lowest.count != 1) ) {
+                    CountBucket bucket = new CountBucket(1);
+                    bucket.higher = lowest;
+                    if(lowest != null) lowest.lower = bucket;
+                    else highest = bucket;
+                    lowest = bucket;
+                }
+                lowest.append(node);
+                return;
+            }
+            increment(node);
+        }
+        
+        //moves a tag already in the list to the bucket with one more occurance
+        private void increment(TagNode node) {
+            CountBucket from = node.bucket;
+            CountBucket to = from.higher;
+            if( (to == null) || (to.count != from.count + 1) ) {
+                to = new CountBucket(from.count + 1);
+                to.lower = from;
+                to.higher = from.higher;
+                if(from.higher != null) from.higher.lower = to;
+                else highest = to;
+                from.higher = to;
+            }
+            from.remove(node);
+            //the tag goes behind the tags which reached this number of occurances before it
+            to.append(node);
+            if(from.isEmpty()) unlink(from);
+        }
+        
+        private void unlink(CountBucket bucket) {
+            if(bucket.higher != null) bucket.higher.lower = bucket.lower;
+            else highest = bucket.lower;
+            if(bucket.lower != null) bucket.lower.higher = bucket.higher;
+            else lowest = bucket.higher;
+        }
+    }
+    
+    //keeps the getRows() arrays of the most recently read user trees, evicting the least recently used ones when more than capacity weets are kept
+    //only row numbers are kept (not weets), so the cache doesn't hold on to messages which are kept off the heap
+    //the arrays are kept on the trees themselves and the trees are linked from the most to the least recently used, so no other map is needed
+    class TimelineCache {
+        protected WeetTree newest;  //the most recently used tree
+        protected WeetTree oldest;  //the least recently used tree (evicted first)
+        protected long weets;       //the number of weets in all kept arrays
+        protected long capacity;    //the most weets kept at once
+        protected volatile long hits;   //read by the store without taking the lock
+        protected volatile long misses;
+        protected ReentrantLock lock;   //queries reading the cache at the same time (under the store's read lock) take turns to change it
+        
+        TimelineCache(long capacity) {
+            newest = null;
+            oldest = null;
+            weets = 0;
+            this.capacity = capacity;
+            hits = 0;
+            misses = 0;
+            lock = new ReentrantLock();
+        }
+        
+        //returns the rows of the weets of the tree sorted in descending order by date, built from the tree only if they aren't kept already
+        public int[] get(WeetTree tree) {
+            lock.lock();
+            try {
+                if(tree.timeline != null) {
+                    hits++;
+                    //the tree becomes the most recently used one
+                    unlink(tree);
+                    link(tree);
+                    return tree.timeline;
+                }
+                misses++;
+            } finally {
+                lock.unlock();
+            }
+            //the tree is walked without holding the cache lock, other queries can use the cache in the meantime
+            int[] timeline = tree.getRows();
+            lock.lock();
+            try {
+                if( (tree.timeline == null) && (timeline.length <= capacity) ) {
+                    tree.timeline = timeline;
+                    weets += timeline.length;
+                    link(tree);
+                    evict();
+                }
+            } finally {
+                lock.unlock();
+            }
+            return timeline;
+        }
+        
+        //drops the kept array of the tree (after a weet was added to it)
+        public void invalidate(WeetTree tree) {
+            lock.lock();
+            try {
+                if(tree.timeline != null) {
+                    weets -= tree.timeline.length;
+                    tree.timeline = null;
+                    unlink(tree);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        //changes the most weets kept at once, evicting trees if there are too many now
+        public void setCapacity(long capacity) {
+            lock.lock();
+            try {
+                this.capacity = capacity;
+                evict();
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        public void resetCounters() {
+            lock.lock();
+            try {
+                hits = 0;
+                misses = 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        //drops the least recently used arrays until at most capacity weets are kept
+        private void evict() {
+            while( (weets > capacity) && (oldest != null) ) {
+                WeetTree tree = oldest;
+                weets -= tree.timeline.length;
+                tree.timeline = null;
+                unlink(tree);
+            }
+        }
+        
+        //puts the tree in front of the most recently used one
+        private void link(WeetTree tree) {
+            tree.newer = null;
+            tree.older = newest;
+            if(newest != null) newest.newer = tree;
+            else oldest = tree;
+            newest = tree;
+        }
+        
+        private void unlink(WeetTree tree) {
+            if(tree.newer != null) tree.newer.older = tree.older;
+            else newest = tree.older;
+            if(tree.older != null) tree.older.newer = tree.newer;
+            else oldest = tree.newer;
+            tree.newer = null;
+            tree.older = null;
+        }
+    }
+    
+    public static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+    public static final long DEFAULT_TIMELINE_CACHE_CAPACITY = 1L << 20;  //weets kept by the TimelineCache
+    public static final int MESSAGE_CHUNK_SIZE = 1 << 24;    //bytes of each buffer of messages (a longer message gets a buffer of its own)
+    
+    protected RowIndex rows;        //finds the row of a weet id
+    protected RowIndex authors;     //finds the dictionary number of a user id
+    protected WeetTree[] userTrees; //the weets of each user (by dictionary number), sorted by date
+    protected int[] userIds;        //the user id of each dictionary number
+    protected int userCount;
+    protected TrendingList topics;  //topics for getTrending
+    protected DateTree dateTree;    //stores weets for each day, sorted by date
+    protected ReentrantReadWriteLock lock;  //queries share the read lock so they can run at the same time, addWeet takes the write lock
+    protected int addedCount;       //the number of weets added (a weet's row in the columns is also its number in the trigram index)
+    protected int[] ids;            //column of weet ids
+    protected int[] users;          //column of the dictionary numbers of the users who posted the weets
+    protected long[] times;         //column of the dates of the weets in milliseconds
+    protected MessageArena arena;   //the UTF-8 messages of the rows
+    protected long[] messageHandles;    //chunk and offset of each row's message in the arena
+    protected int[] messageLengths;     //length of each row's message in bytes
+    protected byte[] asciiLower;        //lower case of each ASCII character, or -1 if it isn't a single ASCII character
+    protected TrigramIndex trigrams;    //finds the weets which may contain a query without looking at every weet
+    protected TimeZone zone;        //the time zone in which weets are grouped into days
+    protected boolean fixedZone;    //true if the offset of the zone never changes, so it doesn't have to be looked up for every date
+    protected int fixedOffset;      //the offset of a fixed zone in milliseconds
+    protected TimelineCache timelines;  //keeps the results of getWeetsByUser() for the most read users
+
+    public WeetStore() {
+        this(TimeZone.getDefault());
+    }
+    
+    //weets are grouped into days according to the passed time zone
+    public WeetStore(TimeZone zone) {
+        this(zone, false);
+    }
+    
+    //weets are made again from the columns when they are returned (so getWeet() returns an equal but different object each time)
+    //if offHeapMessages is true, the UTF-8 messages are kept in direct buffers instead of heap buffers
+    public WeetStore(TimeZone zone, boolean offHeapMessages) {
+        this.zone = zone;
+        fixedZone = isFixedOffset(zone);
+        fixedOffset = zone.getOffset(0);
+        rows = new RowIndex();
+        authors = new RowIndex();
+        userTrees = new WeetTree[1024];
+        userIds = new int[1024];
+        userCount = 0;
+        topics = new TrendingList();
+        dateTree = new DateTree();
+        addedCount = 0;
+        ids = new int[1024];
+        users = new int[1024];
+        times = new long[1024];
+        arena = new MessageArena(offHeapMessages);
+        messageHandles = new long[1024];
+        messageLengths = new int[1024];
+        asciiLower = new byte[128];
+        for(int i = 0; i < 128; i++) {
+            String lower = String.valueOf((char)i).toLowerCase();   //the same (default locale) lower case as the queries
+            asciiLower[i] = ( (lower.length() == 1) && (lower.charAt(0) < 128) ) ? (byte)lower.charAt(0) : -1;
+        }
+        trigrams = new TrigramIndex();
+        lock = new ReentrantReadWriteLock();
+        timelines = new TimelineCache(DEFAULT_TIMELINE_CACHE_CAPACITY);
+    }
+
+    //returns true if the zone has had the same offset at every time (its raw offset alone says nothing about the past, e.g. Europe/Moscow was +4 in 2011)
+    //zones whose rules can't be found are looked up for every date
+    static boolean isFixedOffset(TimeZone zone) {
+        if(zone.useDaylightTime()) return false;
+        try {
+            ZoneRules rules = zone.toZoneId().getRules();
+            return rules.isFixedOffset() && (rules.getOffset(Instant.EPOCH).getTotalSeconds() * 1000 == zone.getOffset(0));
+        } catch(DateTimeException e) {
+            return false;
+        }
+    }
+
+    //returns the day of the time (number of days since 1 January 1970 in the store's time zone)
+    protected int dayOf(long time) {
+        int offset = fixedZone ? fixedOffset : zone.getOffset(time);
+        return (int)Math.floorDiv(time + offset, MILLIS_PER_DAY);
+    }
+    
+    //gives the weet the next row, fills in its columns and adds it to the lists of its trigrams, returns the row
+    protected int addToIndex(Weet weet) {
+        if(addedCount == ids.length) {
+            int capacity = ids.length * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            users = Arrays.copyOf(users, capacity);
+            times = Arrays.copyOf(times, capacity);
+            messageHandles = Arrays.copyOf(messageHandles, capacity);
+            messageLengths = Arrays.copyOf(messageLengths, capacity);
+        }
+        int row = addedCount;
+        String lower = weet.getMessage().toLowerCase();
+        byte[] bytes = weet.getMessage().getBytes(StandardCharsets.UTF_8);
+        messageHandles[row] = arena.add(bytes);
+        messageLengths[row] = bytes.length;
+        ids[row] = weet.getId();
+        users[row] = userNumber(weet.getUserId());
+        times[row] = weet.getDateWeeted().getTime();
+        rows.put(weet.getId(), row);
+        trigrams.add(lower, row);
+        addedCount++;
+        return row;
+    }
+    
+    //returns the dictionary number of the user, giving them the next one (with an empty tree) if they have none yet
+    protected int userNumber(int uid) {
+        int number = authors.get(uid);
+        if(number >= 0) return number;
+        if(userCount == userTrees.length) {
+            userTrees = Arrays.copyOf(userTrees, userCount * 2);
+            userIds = Arrays.copyOf(userIds, userCount * 2);
+        }
+        number = userCount;
+        userTrees[number] = new WeetTree();
+        userIds[number] = uid;
+        authors.put(uid, number);
+        userCount++;
+        return number;
+    }
+    
+    //returns the tree of the user's weets, or null if they haven't posted any
+    protected WeetTree getUserTree(int uid) {
+        int number = authors.get(uid);
+        if(number < 0) return null;
+        return userTrees[number];
+    }
+    
+    //returns the weet of the row, made from the columns
+    protected Weet weetAt(int row) {
+        return new Weet(ids[row], userIds[users[row]], message(row), new Date(times[row]));
+    }
+    
+    //returns the message of the row as it was added
+    protected String message(int row) {
+        int start = (int)messageHandles[row];
+        return decode(arena.chunk(messageHandles[row]), start, start + messageLengths[row]);
+    }
+    
+    //decodes the UTF-8 bytes between from and to without moving the position of the buffer (which other threads may be reading)
+    protected static String decode(ByteBuffer bytes, int from, int to) {
+        if(bytes.hasArray()) return new String(bytes.array(), bytes.arrayOffset() + from, to - from, StandardCharsets.UTF_8);
+        byte[] tmp = new byte[to - from];
+        for(int i = from; i < to; i++) {
+            tmp[i - from] = bytes.get(i);
+        }
+        return new String(tmp, StandardCharsets.UTF_8);
+    }
+    
+    //the UTF-8 bytes of a lower case query, which are compared with the bytes of the messages
+    protected byte[] queryBytes(String lower) {
+        return lower.getBytes(StandardCharsets.UTF_8);
+    }
+    
+    //adds the tags of the row's message to the trending list, scanning its bytes in the arena
+    protected void addTags(int row) {
+        int start = (int)messageHandles[row];
+        topics.addTags(arena.chunk(messageHandles[row]), start, start + messageLengths[row]);
+    }
+    
+    //checks whether the lower case of the row's UTF-8 message contains the query (already in lower case, bytes is its UTF-8) by comparing bytes in the arena, lower casing ASCII characters through a table
+    //a match is only trusted if every byte of it is an ASCII character with a single ASCII lower case, and if there is no match the message is decoded when any of its bytes isn't one
+    protected boolean messageContains(int row, String query, byte[] bytes) {
+        int length = bytes.length;
+        if(length == 0) return true;
+        ByteBuffer chunk = arena.chunk(messageHandles[row]);
+        int start = (int)messageHandles[row];
+        int end = start + messageLengths[row];
+        for(int i = start; i <= end - length; i++) {
+            int j = 0;
+            while( (j < length) && (lower(chunk.get(i + j)) == bytes[j]) ) j++;
+            if(j == length) return true;
+        }
+        for(int i = start; i < end; i++) {
+            if(lower(chunk.get(i)) < 0) return decode(chunk, start, end).toLowerCase().contains(query);
+        }
+        return false;
+    }
+    
+    //the lower case of an ASCII byte, or -1 if it isn't ASCII or its lower case isn't a single ASCII character (the bytes of a query are never -1)
+    private int lower(byte b) {
+        if(b < 0) return -1;
+        return asciiLower[b];
+    }
+    
+    //finds the weets containing the query through the trigram index: the candidates are checked and sorted in descending order by date
+    //(weets on the same date stay in the order they were added, like in the trees)
+    protected Weet[] getContainingIndexed(String query) {
+        String lower = query.toLowerCase();
+        if(lower.length() < 3) return dateTree.getContaining(query);  //lower case can be shorter for some characters
+        int[] seqs = trigrams.getCandidates(lower);
+        byte[] bytes = queryBytes(lower);
+        long[] dates = new long[seqs.length];
+        int count = 0;
+        for(int i = 0; i < seqs.length; i++) {
+            //weets containing all the trigrams of the query don't necessarily contain the query
+            if(messageContains(seqs[i], lower, bytes)) {
+                seqs[count] = seqs[i];
+                dates[count] = times[seqs[i]];
+                count++;
+            }
+        }
+        sortByDate(seqs, dates, 0, count, new int[count], new long[count]);
+        Weet[] containing = new Weet[count];
+        for(int i = 0; i < count; i++) {
+            containing[i] = weetAt(seqs[i]);
+        }
+        return containing;
+    }
+    
+    //stable merge sort of the weet numbers between from (inclusive) and to (exclusive) in descending order by their dates (tmpSeqs and tmpDates are used while merging)
+    protected void sortByDate(int[] seqs, long[] dates, int from, int to, int[] tmpSeqs, long[] tmpDates) {
+        if(to - from < 2) return;
+        int middle = (from + to) >>> 1;
+        sortByDate(seqs, dates, from, middle, tmpSeqs, tmpDates);
+        sortByDate(seqs, dates, middle, to, tmpSeqs, tmpDates);
+        int i = from;
+        int j = middle;
+        int k = from;
+        while( (i < middle) && (j < to) ) {
+            if(dates[i] >= dates[j]) {
+                tmpSeqs[k] = seqs[i];
+                tmpDates[k] = dates[i];
+                i++;
+            } else {
+                tmpSeqs[k] = seqs[j];
+                tmpDates[k] = dates[j];
+                j++;
+            }
+            k++;
+        }
+        while(i < middle) {
+            tmpSeqs[k] = seqs[i];
+            tmpDates[k] = dates[i];
+            i++;
+            k++;
+        }
+        while(j < to) {
+            tmpSeqs[k] = seqs[j];
+            tmpDates[k] = dates[j];
+            j++;
+            k++;
+        }
+        for(k = from; k < to; k++) {
+            seqs[k] = tmpSeqs[k];
+            dates[k] = tmpDates[k];
+        }
+    }
+    
+    public boolean addWeet(Weet weet) {
+        lock.writeLock().lock();
+        try {
+            //if the weet hasn't been added before
+            if(rows.get(weet.getId()) < 0) {
+                int row = addToIndex(weet);     //fill in the columns and add the trigrams of the message to the index
+                dateTree.incSize();     //increase the weet counter
+                dateTree.insert(row);   //insert weet into the tree sorted by date
+                addTags(row);     //add any tags in this weet to the topic list
+                WeetTree userTree = userTrees[users[row]];
+                userTree.insert(row);
+                timelines.invalidate(userTree);    //only this user's kept weets are out of date
+                return true;
+            }
+            return false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    //writes the weets to a snapshot section in the order they were added (ids, user ids, dates in milliseconds and messages), followed by
+    //the weet numbers sorted in descending order by date and the same numbers grouped by user (in ascending order of user id), so the trees can be rebuilt without sorting
+    void writeSnapshot(StoreSnapshot.Writer out) throws IOException {
+        lock.readLock().lock();
+        try {
+            int n = addedCount;
+            int[] uids = new int[n];
+            String[] messages = new String[n];
+            for(int i = 0; i < n; i++) {
+                uids[i] = userIds[users[i]];
+                messages[i] = message(i);
+            }
+            int[] dateOrder = new int[n];
+            long[] keys = new long[n];
+            for(int i = 0; i < n; i++) {
+                dateOrder[i] = i;
+                keys[i] = times[i];
+            }
+            int[] tmpSeqs = new int[n];
+            long[] tmpKeys = new long[n];
+            sortByDate(dateOrder, keys, 0, n, tmpSeqs, tmpKeys);
+            //the sort is stable and descending, so sorting the date order by minus the user id groups it by user and keeps each user's weets latest first
+            int[] userOrder = new int[n];
+            for(int i = 0; i < n; i++) {
+                userOrder[i] = dateOrder[i];
+                keys[i] = -(long)uids[dateOrder[i]];
+            }
+            sortByDate(userOrder, keys, 0, n, tmpSeqs, tmpKeys);
+            out.writeInt(n);
+            out.writeInts(ids, n);
+            out.writeInts(uids, n);
+            out.writeLongs(times, n);
+            out.writeStrings(messages, n);
+            out.writeInts(dateOrder, n);
+            out.writeInts(userOrder, n);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    //restores the weets of a snapshot section (the store must be empty)
+    void readSnapshot(StoreSnapshot.Reader in) throws IOException {
+        int n = in.readInt();
+        if(n < 0) throw new IOException("Snapshot has a negative number of weets");
+        int[] weetIds = in.readInts(n);
+        int[] uids = in.readInts(n);
+        long[] dates = in.readLongs(n);
+        String[] messages = in.readStrings(n);
+        int[] dateOrder = in.readInts(n);
+        int[] userOrder = in.readInts(n);
+        Weet[] all = new Weet[n];
+        for(int i = 0; i < n; i++) {
+            all[i] = new Weet(weetIds[i], uids[i], messages[i], new Date(dates[i]));
+        }
+        load(all, dateOrder, userOrder);
+    }
+    
+    //adds weets to an empty store in the order they were added to the store they came from, building the date tree and the tree of every user bottom-up:
+    //dateOrder holds the weet numbers sorted in descending order by date and userOrder the same numbers grouped by user (weets on the same date in the order they were added)
+    protected void load(Weet[] all, int[] dateOrder, int[] userOrder) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if(addedCount > 0) throw new IllegalStateException("Snapshots can only be read into an empty store");
+            int n = all.length;
+            //the store is empty, so each weet's row is its position in all
+            for(int i = 0; i < n; i++) {
+                if(rows.get(all[i].getId()) >= 0) throw new IOException("Snapshot has weet " + all[i].getId() + " more than once");
+                addTags(addToIndex(all[i]));
+            }
+            for(int i = 0; i < n; i++) {
+                if( (dateOrder[i] < 0) || (dateOrder[i] >= n) ) throw new IOException("Snapshot has an invalid date order");
+            }
+            if(!dateTree.load(dateOrder, n)) {
+                //the days aren't in order, so the weets are inserted one by one (latest first, which keeps weets on the same date in order)
+                for(int i = 0; i < n; i++) {
+                    dateTree.incSize();
+                    dateTree.insert(dateOrder[i]);
+                }
+            }
+            for(int i = 0; i < n; i++) {
+                if( (userOrder[i] < 0) || (userOrder[i] >= n) ) throw new IOException("Snapshot has an invalid user order");
+            }
+            int start = 0;
+            for(int i = 1; i <= n; i++) {
+                if( (i == n) || (users[userOrder[i]] != users[userOrder[start]]) ) {
+                    WeetTree userTree = userTrees[users[userOrder[start]]];
+                    if(userTree.size() > 0) throw new IOException("Snapshot has an invalid user order");
+                    userTree.load(userOrder, start, i);
+                    start = i;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    public Weet getWeet(int wid) {
+        lock.readLock().lock();
+        try {
+            int row = rows.get(wid);
+            if(row < 0) return null;
+            return weetAt(row);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public Weet[] getWeets() {
+        lock.readLock().lock();
+        try {
+            return dateTree.getInOrder();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public Weet[] getWeetsByUser(User usr) {
+        lock.readLock().lock();
+        try {
+            WeetTree userTree = getUserTree(usr.getId());
+            if(userTree != null) {
+                //array with size=count of weets this user has, made from the kept rows
+                int[] timeline = timelines.get(userTree);
+                Weet[] userWeets = new Weet[timeline.length];
+                for(int i = 0; i < timeline.length; i++) {
+                    userWeets[i] = weetAt(timeline[i]);
+                }
+                return userWeets;
+            }
+            return new Weet[0];
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     public Weet[] getWeetsContaining(String query) {
-        dateTree.getContaining(query);
-        return allWeets;
+        lock.readLock().lock();
+        try {
+            //queries of at least 3 characters are answered by the trigram index, shorter ones by looking through all weets
+            if( (query != null) && (query.length() >= 3) ) return getContainingIndexed(query);
+            return dateTree.getContaining(query);
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     public Weet[] getWeetsOn(Date dateOn) {
-        count = 0;
-        WeetTree weetsOn = dateTree.getOnDate(dateOn);
-        if(weetsOn != null) {
-            count = weetsOn.getInList();
-            if(count > 0) {
-                allWeets = new Weet[count]; //array to be returned, with size=count of weets on this date
-                //move weets into array
-                for(int i = 0; (i < count) && (weetList.getPrev() != null); i++) {
-                    weetList = weetList.getPrev();
-                    allWeets[i] = weetList.getValue();
-                }
-                weetList = null;
-                return allWeets;
+        lock.readLock().lock();
+        try {
+            WeetTree weetsOn = dateTree.getOnDate(dateOn);
+            if(weetsOn != null) {
+                return weetsOn.getAll();   //array with size=count of weets on this date
             }
+            return new Weet[0];
+        } finally {
+            lock.readLock().unlock();
         }
-        allWeets = new Weet[0];
-        return allWeets;
     }
 
     public Weet[] getWeetsBefore(Date dateBefore) {
-        dateTree.getBefore(dateBefore);
-        return allWeets;
+        lock.readLock().lock();
+        try {
+            return dateTree.getBefore(dateBefore);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //return the weets posted between the dates (both inclusive), sorted in descending order by date
+    public Weet[] getWeetsBetween(Date from, Date to) {
+        lock.readLock().lock();
+        try {
+            return dateTree.getBetween(from.getTime(), to.getTime());
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     public String[] getTrending() {
-       return topics.getTrending();
+        lock.readLock().lock();
+        try {
+            return topics.getTrending();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    //returns the k most used tags, or null if fewer than k different tags were used
+    public String[] getTrending(int k) {
+        lock.readLock().lock();
+        try {
+            return topics.getTrending(k);
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
+    
+    //return up to limit weets, starting after the first offset weets of getWeets()
+    public Weet[] getWeets(int offset, int limit) {
+        lock.readLock().lock();
+        try {
+            WeetCursor cursor = new WeetCursor(dateTree, Math.max(offset, 0));
+            return cursor.take(limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    //return up to limit weets of getWeets() which come after the weet with the passed date and id (the last weet of the previous page)
+    public Weet[] getWeetsOlderThan(Date date, int id, int limit) {
+        lock.readLock().lock();
+        try {
+            WeetCursor cursor = new WeetCursor(dateTree, dayOf(date.getTime()), date.getTime());
+            cursor.skipPast(date.getTime(), id);
+            return cursor.take(limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    //return up to limit weets, starting after the first offset weets of getWeetsBefore()
+    public Weet[] getWeetsBefore(Date dateBefore, int offset, int limit) {
+        lock.readLock().lock();
+        try {
+            //the weets posted before the date start right after the ones posted later
+            int later = dateTree.size() - dateTree.countBefore(dayOf(dateBefore.getTime()), dateBefore.getTime(), true);
+            WeetCursor cursor = new WeetCursor(dateTree, later + Math.max(offset, 0));
+            return cursor.take(limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    //return up to limit weets, starting after the first offset weets of getWeetsBetween()
+    public Weet[] getWeetsBetween(Date from, Date to, int offset, int limit) {
+        lock.readLock().lock();
+        try {
+            int upTo = dateTree.countBefore(dayOf(to.getTime()), to.getTime(), true);
+            int count = upTo - dateTree.countBefore(dayOf(from.getTime()), from.getTime(), false);
+            offset = Math.max(offset, 0);
+            if(offset >= count) return new Weet[0];
+            //the weets in the range start right after the ones posted later
+            WeetCursor cursor = new WeetCursor(dateTree, dateTree.size() - upTo + offset);
+            return cursor.take(Math.min(limit, count - offset));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    //return up to limit weets, starting after the first offset weets of getWeetsByUser()
+    public Weet[] getWeetsByUser(User usr, int offset, int limit) {
+        lock.readLock().lock();
+        try {
+            WeetTree userTree = getUserTree(usr.getId());
+            if(userTree == null) return new Weet[0];
+            WeetCursor cursor = new WeetCursor(userTree, Math.max(offset, 0));
+            return cursor.take(limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    //return up to limit weets of getWeetsByUser() which come after the weet with the passed date and id (the last weet of the previous page)
+    public Weet[] getWeetsByUserOlderThan(User usr, Date date, int id, int limit) {
+        lock.readLock().lock();
+        try {
+            WeetTree userTree = getUserTree(usr.getId());
+            if(userTree == null) return new Weet[0];
+            WeetCursor cursor = new WeetCursor(userTree, date.getTime());
+            cursor.skipPast(date.getTime(), id);
+            return cursor.take(limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    //a cursor over the weets of each of the users posted on or before time, merged into one descending order by date (latest first)
+    protected FanInCursor fanIn(int[] uids, long time, long since) {
+        WeetCursor[] cursors = new WeetCursor[uids.length];
+        for(int i = 0; i < uids.length; i++) {
+            WeetTree userTree = getUserTree(uids[i]);
+            if(userTree != null) cursors[i] = new WeetCursor(userTree, time);
+        }
+        return new FanInCursor(cursors, since);
+    }
+    
+    //return the latest limit weets of all the passed users together, sorted in descending order by date
+    public Weet[] getWeetsByUsers(int[] uids, int limit) {
+        lock.readLock().lock();
+        try {
+            return fanIn(uids, Long.MAX_VALUE, Long.MIN_VALUE).take(limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    //return the latest limit weets of the passed users which were posted after since (exclusive), sorted in descending order by date
+    public Weet[] getWeetsByUsersSince(int[] uids, Date since, int limit) {
+        lock.readLock().lock();
+        try {
+            return fanIn(uids, Long.MAX_VALUE, since.getTime()).take(limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    //return up to limit weets of getWeetsByUsers() which come after the weet with the passed date and id (the last weet of the previous page)
+    public Weet[] getWeetsByUsersOlderThan(int[] uids, Date date, int id, int limit) {
+        lock.readLock().lock();
+        try {
+            FanInCursor cursor = fanIn(uids, date.getTime(), Long.MIN_VALUE);
+            cursor.skipPast(date.getTime(), id);
+            return cursor.take(limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    //return the number of weets posted before the date (inclusive), without building the array of getWeetsBefore()
+    public int countWeetsBefore(Date dateBefore) {
+        lock.readLock().lock();
+        try {
+            return dateTree.countBefore(dayOf(dateBefore.getTime()), dateBefore.getTime(), true);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    //return the number of weets posted between the dates (both inclusive)
+    public int countWeetsBetween(Date from, Date to) {
+        lock.readLock().lock();
+        try {
+            int count = dateTree.countBefore(dayOf(to.getTime()), to.getTime(), true) - dateTree.countBefore(dayOf(from.getTime()), from.getTime(), false);
+            return Math.max(count, 0);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    //return the number of weets the user posted before the date (inclusive)
+    public int countWeetsByUserBefore(User usr, Date dateBefore) {
+        lock.readLock().lock();
+        try {
+            WeetTree userTree = getUserTree(usr.getId());
+            if(userTree == null) return 0;
+            return userTree.countBefore(dateBefore.getTime(), true);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    //return the weet at position index of getWeets() (0 is the latest weet), or null if there is no such position
+    public Weet getWeetAt(int index) {
+        lock.readLock().lock();
+        try {
+            return dateTree.select(index);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    //return the weet at position index of getWeetsByUser() (0 is the user's latest weet), or null if there is no such position
+    public Weet getWeetByUserAt(User usr, int index) {
+        lock.readLock().lock();
+        try {
+            WeetTree userTree = getUserTree(usr.getId());
+            if(userTree == null) return null;
+            return userTree.select(index);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    //changes the number of weets the cache of getWeetsByUser() results may keep (0 turns it off)
+    public void setTimelineCacheCapacity(long capacity) {
+        timelines.setCapacity(capacity);
+    }
+    
+    public long getTimelineCacheHits() {
+        return timelines.hits;
+    }
+    
+    public long getTimelineCacheMisses() {
+        return timelines.misses;
+    }
+    
+    public void resetTimelineCacheCounters() {
+        timelines.resetCounters();
+    }
+    
+    //returns the number of bytes allocated outside the heap for messages (0 if they are kept on the heap)
+    public long getOffHeapMessageMemory() {
+        if(!arena.direct) return 0;
+        return arena.capacity;
+    }
+    
+    //iterators and streams don't hold the read lock, so weets must not be added while they are in use
+    
+    //iterates over all weets from the latest one, only keeping stacks of O(log n) nodes
+    public Iterator<Weet> iterateWeets() {
+        return new WeetCursor(dateTree);
+    }
+    
+    //iterates over the weets posted before the date (inclusive) from the latest one
+    public Iterator<Weet> iterateWeetsBefore(Date dateBefore) {
+        return new WeetCursor(dateTree, dayOf(dateBefore.getTime()), dateBefore.getTime());
+    }
+    
+    //iterates over the weets of the user from the latest one
+    public Iterator<Weet> iterateWeetsByUser(User usr) {
+        WeetTree userTree = getUserTree(usr.getId());
+        if(userTree == null) userTree = new WeetTree();
+        return new WeetCursor(userTree);
+    }
+    
+    //iterates over the weets of all the passed users from the latest one, only looking at the next weet of each user
+    public Iterator<Weet> iterateWeetsByUsers(int[] uids) {
+        return fanIn(uids, Long.MAX_VALUE, Long.MIN_VALUE);
+    }
+    
+    //a stream of all weets sorted in descending order by date, which can be split for parallel streams
+    public Stream<Weet> streamWeets() {
+        return StreamSupport.stream(new WeetSpliterator(new WeetCursor(dateTree)), false);
+    }
+    
+    //a stream of the weets posted before the date (inclusive) sorted in descending order by date
+    public Stream<Weet> streamWeetsBefore(Date dateBefore) {
+        return StreamSupport.stream(new WeetSpliterator(new WeetCursor(dateTree, dayOf(dateBefore.getTime()), dateBefore.getTime())), false);
+    }
+    
+    //a stream of the weets of the user sorted in descending order by date
+    public Stream<Weet> streamWeetsByUser(User usr) {
+        WeetTree userTree = getUserTree(usr.getId());
+        if(userTree == null) userTree = new WeetTree();
+        return StreamSupport.stream(new WeetSpliterator(new WeetCursor(userTree)), false);
+    }
 }
@@ -0,0 +1,444 @@
+/**
+ * Makes addUser(), addFollower() and addWeet() durable by appending every accepted change to a log file before the add returns
+ * Each record holds its length, a CRC32 checksum and the change (type, two ids, a date and the UTF-8 name or message), so a record torn by a crash is found and cut off on recovery
+ * Records are collected in a buffer and written through a FileChannel; a thread waiting for its record to be durable either forces the log itself (for every record
+ * collected so far) or waits for the thread already doing it, so threads adding at the same time share one fsync (group commit)
+ * Between beginBatch() and endBatch() adds don't wait at all and the log is only forced at the end of the batch, so bulk ingest doesn't pay one fsync per record
+ * On startup open() reads the last StoreSnapshot and replays the log on top of it, checkpoint() writes a new snapshot and empties the log, so recovery only replays the changes since the last checkpoint
+ * Replaying a change which is already in the snapshot (after a crash between writing the snapshot and emptying the log) is rejected by the store like any duplicate, so it does no harm
+ * A change is only made once its record is sure to fit in the log buffer, so a change is never in a store without its record being appended
+ * If writing or forcing the log fails, the log stops: every later add throws, and changes made since the last successful force are in the stores but may not be on disk,
+ * so after such an error the stores should be thrown away and restored with open() (reads from the stores are not stopped, as they don't go through the log)
+ * checkpoint() checks the new snapshot can be read back before it replaces the old one and empties the log
+ * @author: 1525713
+ */
+
+package uk.ac.warwick.java.cs126.services;
+
+import uk.ac.warwick.java.cs126.models.User;
+import uk.ac.warwick.java.cs126.models.Weet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+public class WriteAheadLog {
+
+    //reads the records of the log one by one through a buffer which is refilled from the channel
+    class RecordReader {
+        private ByteBuffer buffer;
+        protected byte type;
+        protected int first;
+        protected int second;
+        protected long date;
+        protected String text;
+
+        RecordReader() {
+            buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            buffer.flip();  //the buffer is always ready to be read from
+        }
+
+        //makes sure the buffer holds at least need bytes, returns false if the log ends first
+        private boolean fill(int need) throws IOException {
+            while(buffer.remaining() < need) {
+                if(buffer.capacity() < need) {
+                    ByteBuffer bigger = ByteBuffer.allocate(Math.max(need, buffer.capacity() * 2));
+                    bigger.put(buffer);
+                    bigger.flip();
+                    buffer = bigger;
+                }
+                buffer.compact();
+                int read = channel.read(buffer);
+                buffer.flip();
+                if(read < 0) return false;
+            }
+            return true;
+        }
+
+        //reads the next record, returns its size in the log or -1 if there is no complete and undamaged record left
+        public int next() throws IOException {
+            if(!fill(8)) return -1;
+            int length = buffer.getInt(buffer.position());
+            int checksum = buffer.getInt(buffer.position() + 4);
+            if( (length < RECORD_FIXED_SIZE) || (length > MAX_RECORD_SIZE) ) return -1;
+            if(!fill(8 + length)) return -1;
+            buffer.position(buffer.position() + 8);
+            CRC32 crc = new CRC32();
+            ByteBuffer body = buffer.duplicate();
+            body.limit(body.position() + length);
+            crc.update(body);
+            if((int)crc.getValue() != checksum) return -1;
+            type = buffer.get();
+            first = buffer.getInt();
+            second = buffer.getInt();
+            date = buffer.getLong();
+            byte[] bytes = new byte[length - RECORD_FIXED_SIZE];
+            buffer.get(bytes);
+            text = new String(bytes, StandardCharsets.UTF_8);
+            return 8 + length;
+        }
+    }
+
+    public static final int MAGIC = 0x57414C31;    //"WAL1"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 8;
+    public static final byte RECORD_USER = 1;
+    public static final byte RECORD_FOLLOW = 2;
+    public static final byte RECORD_WEET = 3;
+    public static final int RECORD_FIXED_SIZE = 1 + 4 + 4 + 8;   //type, two ids and a date, followed by the text
+    public static final int MAX_RECORD_SIZE = 1 << 26;
+    public static final int BUFFER_SIZE = 1 << 20;   //records collected before they are written to the channel (without forcing it)
+
+    protected UserStore users;
+    protected FollowerStore followers;
+    protected WeetStore weets;
+    protected FileChannel channel;
+    protected ReentrantLock lock;       //held while a change is applied and appended, so the log holds changes in the order they were made
+    protected Condition synced;         //signalled whenever a force of the log ends
+    protected ByteBuffer pending;       //records appended since the last write to the channel
+    protected ByteBuffer spare;         //the buffer pending is swapped with while a force writes it out
+    protected long appended;            //number of the last record appended
+    protected long durable;             //number of the last record known to be on disk
+    protected boolean syncing;          //true while a thread is writing and forcing the log (without holding the lock)
+    protected volatile boolean batch;   //true between beginBatch() and endBatch()
+    protected IOException failure;      //the error which stopped the log, after which nothing more can be added
+    protected CRC32 crc;
+    protected volatile long syncs;      //number of times the log was forced
+    protected int recovered;            //number of records replayed when the log was opened
+
+    //opens the log (creating it if needed) and replays its records into the stores, which should already hold the last snapshot
+    //a damaged or incomplete record at the end of the log (from a crash while it was written) is cut off along with anything after it
+    public WriteAheadLog(File log, UserStore users, FollowerStore followers, WeetStore weets) throws IOException {
+        this.users = users;
+        this.followers = followers;
+        this.weets = weets;
+        lock = new ReentrantLock();
+        synced = lock.newCondition();
+        pending = ByteBuffer.allocate(BUFFER_SIZE);
+        spare = ByteBuffer.allocate(BUFFER_SIZE);
+        appended = 0;
+        durable = 0;
+        syncing = false;
+        batch = false;
+        failure = null;
+        crc = new CRC32();
+        syncs = 0;
+        channel = FileChannel.open(log.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            recovered = recover();
+        } catch(IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    //restores the stores (which should be empty) from the snapshot if there is one, then replays the log written since that snapshot
+    public static WriteAheadLog open(File snapshot, File log, UserStore users, FollowerStore followers, WeetStore weets) throws IOException {
+        if(snapshot.exists()) StoreSnapshot.read(snapshot, users, followers, weets);
+        return new WriteAheadLog(log, users, followers, weets);
+    }
+
+    //checks the header (writing it to a new log), replays every complete record and cuts off the rest, returns the number of records replayed
+    private int recover() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if(channel.size() == 0) {
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.flip();
+            while(header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+            channel.position(HEADER_SIZE);
+            return 0;
+        }
+        while(header.hasRemaining()) {
+            if(channel.read(header, header.position()) < 0) break;
+        }
+        header.flip();
+        if( (header.remaining() < HEADER_SIZE) || (header.getInt() != MAGIC) ) throw new IOException("Not a write-ahead log");
+        int version = header.getInt();
+        if(version != VERSION) throw new IOException("Unsupported log version " + version + " (expected " + VERSION + ")");
+        channel.position(HEADER_SIZE);
+        RecordReader reader = new RecordReader();
+        long end = HEADER_SIZE;     //end of the last good record
+        int count = 0;
+        int size = reader.next();
+        while(size > 0) {
+            if( (reader.type < RECORD_USER) || (reader.type > RECORD_WEET) ) throw new IOException("Unknown record type " + reader.type + " in the log");
+            apply(reader.type, reader.first, reader.second, reader.date, reader.text);
+            end += size;
+            count++;
+            size = reader.next();
+        }
+        if(end < channel.size()) {
+            channel.truncate(end);
+            channel.force(true);
+        }
+        channel.position(end);
+        return count;
+    }
+
+    //makes the change in its store, returns false if the store rejected it
+    private boolean apply(byte type, int first, int second, long date, String text) {
+        if(type == RECORD_USER) return users.addUser(new User(text, first, new Date(date)));
+        if(type == RECORD_FOLLOW) return followers.addFollower(first, second, new Date(date));
+        return weets.addWeet(new Weet(first, second, text, new Date(date)));
+    }
+
+    public boolean addUser(User usr) throws IOException {
+        long record;
+        lock.lock();
+        try {
+            checkFailure();
+            byte[] text = reserve(usr.getName());
+            //changes rejected by the store aren't logged
+            if(!users.addUser(usr)) return false;
+            record = append(RECORD_USER, usr.getId(), 0, usr.getDateJoined().getTime(), text);
+        } finally {
+            lock.unlock();
+        }
+        if(!batch) awaitDurable(record);
+        return true;
+    }
+
+    public boolean addFollower(int uid1, int uid2, Date followDate) throws IOException {
+        long record;
+        lock.lock();
+        try {
+            checkFailure();
+            byte[] text = reserve("");
+            if(!followers.addFollower(uid1, uid2, followDate)) return false;
+            record = append(RECORD_FOLLOW, uid1, uid2, followDate.getTime(), text);
+        } finally {
+            lock.unlock();
+        }
+        if(!batch) awaitDurable(record);
+        return true;
+    }
+
+    public boolean addWeet(Weet weet) throws IOException {
+        long record;
+        lock.lock();
+        try {
+            checkFailure();
+            byte[] text = reserve(weet.getMessage());
+            if(!weets.addWeet(weet)) return false;
+            record = append(RECORD_WEET, weet.getId(), weet.getUserId(), weet.getDateWeeted().getTime(), text);
+        } finally {
+            lock.unlock();
+        }
+        if(!batch) awaitDurable(record);
+        return true;
+    }
+
+    private void checkFailure() throws IOException {
+        if(failure != null) throw new IOException("The log stopped after an earlier error", failure);
+        if(!channel.isOpen()) throw new IOException("The log is closed");
+    }
+
+    //makes room in the pending buffer for a record with the text (the lock must be held), returns the text as UTF-8
+    //this is done before the change is made, so a record which is too large or an error writing the buffer leaves the store unchanged
+    private byte[] reserve(String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        int length = RECORD_FIXED_SIZE + bytes.length;
+        if(length > MAX_RECORD_SIZE) throw new IOException("Record of " + length + " bytes is too large for the log");
+        if(pending.remaining() < 8 + length) {
+            if(!syncing && (pending.position() > 0)) {
+                //nobody else is writing to the channel, so the pending records can be written now and forced later
+                try {
+                    write(pending);
+                } catch(IOException e) {
+                    failure = e;
+                    throw e;
+                }
+            }
+            if(pending.remaining() < 8 + length) {
+                //a force is writing the other buffer, so this one grows instead
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + 8 + length));
+                pending.flip();
+                bigger.put(pending);
+                pending = bigger;
+            }
+        }
+        return bytes;
+    }
+
+    //adds a record to the pending buffer after reserve() made room for it (the lock must be held), returns its number
+    private long append(byte type, int first, int second, long date, byte[] bytes) {
+        int length = RECORD_FIXED_SIZE + bytes.length;
+        int start = pending.position();
+        pending.position(start + 8);
+        pending.put(type);
+        pending.putInt(first);
+        pending.putInt(second);
+        pending.putLong(date);
+        pending.put(bytes);
+        //the checksum covers everything after the length and checksum themselves
+        ByteBuffer body = pending.duplicate();
+        body.position(start + 8);
+        body.limit(start + 8 + length);
+        crc.reset();
+        crc.update(body);
+        pending.putInt(start, length);
+        pending.putInt(start + 4, (int)crc.getValue());
+        appended++;
+        return appended;
+    }
+
+    //writes the buffer to the end of the log and clears it
+    private void write(ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while(buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    //returns once the record is on disk: the first thread to get here forces every record appended so far while the others wait for it,
+    //and a thread whose record was appended after that force started forces the next group
+    protected void awaitDurable(long record) throws IOException {
+        lock.lock();
+        try {
+            while(durable < record) {
+                checkFailure();
+                if(syncing) {
+                    synced.awaitUninterruptibly();
+                    continue;
+                }
+                syncing = true;
+                ByteBuffer toWrite = pending;
+                pending = spare;
+                long upTo = appended;
+                IOException error = null;
+                //the lock isn't held while writing, so other threads keep appending to the other buffer
+                lock.unlock();
+                try {
+                    write(toWrite);
+                    channel.force(false);
+                } catch(IOException e) {
+                    error = e;
+                } finally {
+                    lock.lock();
+                }
+                spare = toWrite;
+                syncing = false;
+                if(error != null) failure = error;
+                else {
+                    durable = upTo;
+                    syncs++;
+                }
+                synced.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //returns once every change added so far is on disk
+    public void sync() throws IOException {
+        long record;
+        lock.lock();
+        try {
+            record = appended;
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable(record);
+    }
+
+    //from now on adds return without waiting for their record to be on disk, until endBatch() is called
+    public void beginBatch() {
+        batch = true;
+    }
+
+    //forces every change added during the batch to disk, then goes back to waiting on every add
+    public void endBatch() throws IOException {
+        batch = false;
+        sync();
+    }
+
+    //writes a new snapshot of the stores (replacing the old one) and empties the log, so the next recovery starts from this point
+    //adds wait while the snapshot is written
+    public void checkpoint(File snapshot) throws IOException {
+        lock.lock();
+        try {
+            checkFailure();
+            //a force in progress has to end before the log is emptied
+            while(syncing) {
+                synced.awaitUninterruptibly();
+            }
+            checkFailure();
+            File tmp = new File(snapshot.getPath() + ".tmp");
+            try {
+                StoreSnapshot.write(tmp, users, followers, weets);
+                //the log is the only other copy of the changes, so the new snapshot must be readable before the log is emptied
+                StoreSnapshot.verify(tmp);
+            } catch(IOException | RuntimeException e) {
+                Files.deleteIfExists(tmp.toPath());
+                throw e;
+            }
+            //the old snapshot is only replaced once the new one is complete
+            Files.move(tmp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            syncDirectory(snapshot.getAbsoluteFile().getParentFile());
+            pending.clear();
+            channel.truncate(HEADER_SIZE);
+            channel.position(HEADER_SIZE);
+            channel.force(true);
+            durable = appended;
+            synced.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //forces the directory to disk, so the rename of the new snapshot survives a crash before the log is emptied
+    private void syncDirectory(File directory) throws IOException {
+        if(directory == null) return;
+        FileChannel dir;
+        try {
+            dir = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+        } catch(IOException e) {
+            return;     //some systems (Windows) can't open a directory, and don't need it to be forced
+        }
+        try {
+            dir.force(true);
+        } finally {
+            dir.close();
+        }
+    }
+
+    //forces every change to disk and closes the log
+    public void close() throws IOException {
+        if(!channel.isOpen()) return;
+        try {
+            if(failure == null) sync();
+        } finally {
+            channel.close();
+        }
+    }
+
+    //return the number of records replayed when the log was opened
+    public int getRecoveredCount() {
+        return recovered;
+    }
+
+    //return the number of times the log was forced to disk (at most one per add, and usually far fewer when threads add at the same time)
+    public long getSyncCount() {
+        return syncs;
+    }
+
+    //return the size of the log file in bytes (records still in the buffer aren't counted)
+    public long getLogSize() throws IOException {
+        return channel.size();
+    }
+}